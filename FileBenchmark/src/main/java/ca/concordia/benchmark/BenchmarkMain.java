@@ -0,0 +1,129 @@
+package ca.concordia.benchmark;
+
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+// Runs the benchmarks once per thread count and compares the scores with a saved baseline.
+//
+//   java -jar target/benchmarks.jar [regex] [--threads=1,4,16] [--save=FILE] [--baseline=FILE] [--tolerance=PCT] [--quick]
+//
+// --save writes one "benchmark params threads<TAB>ops/s" line per result. --baseline compares against such a file and
+// exits with status 1 if any score dropped by more than tolerance percent (default 10). --quick shortens warmup and
+// measurement for a smoke run. For anything else use JMH's own runner: java -cp target/benchmarks.jar org.openjdk.jmh.Main
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws RunnerException, IOException {
+        String include = "ca.concordia.benchmark.*";
+        int[] threads = {1, 4, 16};
+        Path save = null;
+        Path baseline = null;
+        double tolerance = 10;
+        boolean quick = false;
+        for (String arg : args) {
+            String[] kv = arg.split("=", 2);
+            switch (kv[0]) {
+                case "--threads" -> threads = parseThreads(kv[1]);
+                case "--save" -> save = Path.of(kv[1]);
+                case "--baseline" -> baseline = Path.of(kv[1]);
+                case "--tolerance" -> tolerance = Double.parseDouble(kv[1]);
+                case "--quick" -> quick = true;
+                default -> {
+                    if (arg.startsWith("--")) {
+                        System.err.println("Unknown option " + kv[0]);
+                        System.exit(2);
+                    }
+                    include = arg;
+                }
+            }
+        }
+
+        Map<String, Double> scores = new LinkedHashMap<>();
+        for (int t : threads) {
+            ChainedOptionsBuilder options = new OptionsBuilder().include(include).threads(t);
+            if (quick) {
+                options.warmupIterations(1).warmupTime(TimeValue.seconds(1))
+                        .measurementIterations(2).measurementTime(TimeValue.seconds(1));
+            }
+            Collection<RunResult> results = new Runner(options.build()).run();
+            for (RunResult r : results) {
+                scores.put(keyOf(r, t), r.getPrimaryResult().getScore());
+            }
+        }
+
+        if (save != null) {
+            List<String> lines = new ArrayList<>();
+            scores.forEach((key, score) -> lines.add(key + "\t" + score));
+            Files.write(save, lines);
+            System.out.println("Saved " + lines.size() + " results to " + save);
+        }
+        if (baseline != null && !compare(readScores(baseline), scores, tolerance)) {
+            System.exit(1);
+        }
+    }
+
+    private static int[] parseThreads(String list) {
+        String[] parts = list.split(",");
+        int[] out = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            out[i] = Integer.parseInt(parts[i].trim());
+        }
+        return out;
+    }
+
+    // e.g. "ca.concordia.benchmark.FileSystemBenchmark.read blockSize=4096,fileSize=128 threads=4"
+    private static String keyOf(RunResult r, int threads) {
+        var params = r.getParams();
+        StringBuilder sb = new StringBuilder(params.getBenchmark()).append(' ');
+        String sep = "";
+        for (String name : new TreeSet<>(params.getParamsKeys())) {
+            sb.append(sep).append(name).append('=').append(params.getParam(name));
+            sep = ",";
+        }
+        return sb.append(" threads=").append(threads).toString();
+    }
+
+    private static Map<String, Double> readScores(Path file) throws IOException {
+        Map<String, Double> scores = new LinkedHashMap<>();
+        for (String line : Files.readAllLines(file)) {
+            int tab = line.lastIndexOf('\t');
+            if (tab > 0) {
+                scores.put(line.substring(0, tab), Double.parseDouble(line.substring(tab + 1)));
+            }
+        }
+        return scores;
+    }
+
+    // Prints every result next to its baseline, returns false if one is slower than the tolerance allows
+    private static boolean compare(Map<String, Double> baseline, Map<String, Double> current, double tolerance) {
+        boolean ok = true;
+        System.out.println();
+        System.out.println("Compared with baseline (tolerance " + tolerance + "%):");
+        for (Map.Entry<String, Double> e : current.entrySet()) {
+            Double before = baseline.get(e.getKey());
+            if (before == null) {
+                System.out.printf("  NEW        %s  %.1f ops/s%n", e.getKey(), e.getValue());
+                continue;
+            }
+            double change = (e.getValue() - before) / before * 100;
+            boolean regressed = change < -tolerance;
+            ok &= !regressed;
+            System.out.printf("  %-10s %s  %.1f -> %.1f ops/s (%+.1f%%)%n", regressed ? "REGRESSED" : "ok",
+                    e.getKey(), before, e.getValue(), change);
+        }
+        return ok;
+    }
+}
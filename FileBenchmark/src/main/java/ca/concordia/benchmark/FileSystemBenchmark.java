@@ -0,0 +1,128 @@
+package ca.concordia.benchmark;
+
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.device.BlockDevice;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// FileSystemManager called directly, no sockets. Every benchmark thread works on its own files, so with more
+// threads (-t or BenchmarkMain --threads) this measures how well operations on different files run in parallel.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileSystemBenchmark {
+
+    private static final int MAX_THREADS = 64;//volume is sized for this many threads
+
+    @State(Scope.Benchmark)
+    public static class Volume {
+        @Param({"128", "4096", "65536", "1048576"})
+        public int fileSize;
+
+        @Param({"4096"})
+        public int blockSize;
+
+        @Param({"on"})
+        public String journal;//on | off
+
+        @Param({"channel"})
+        public String device;//channel | mapped
+
+        FileSystemManager fs;
+        final AtomicInteger threadIds = new AtomicInteger();
+        private Path dir;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            dir = Files.createTempDirectory("fsbench");
+            long fileBytes = ((long) fileSize + blockSize - 1) / blockSize * blockSize;
+            long size = Math.max(64L * 1024 * 1024, fileBytes * MAX_THREADS * 4);//room for a copy-on-write rewrite of every file
+            BlockDevice data = FileSystemManager.openDevice(dir.resolve("bench.dat").toString(), size, blockSize,
+                    BlockDevice.Type.valueOf(device.toUpperCase()));
+            BlockDevice log = journal.equals("on")
+                    ? BlockDevice.open(dir.resolve("bench.journal").toString(), FileSystemManager.DEFAULT_JOURNAL_SIZE, BlockDevice.Type.CHANNEL)
+                    : null;
+            fs = new FileSystemManager(data, log, blockSize, 4096);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            fs.close();
+            try (var files = Files.list(dir)) {
+                for (Path p : (Iterable<Path>) files::iterator) {
+                    Files.delete(p);
+                }
+            }
+            Files.delete(dir);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        String existing;//written in setup, read and rewritten by the benchmarks
+        String scratch;//created and deleted by the benchmarks
+        byte[] payload;
+
+        @Setup(Level.Trial)
+        public void setUp(Volume v) throws Exception {
+            int id = v.threadIds.getAndIncrement();
+            if (id >= MAX_THREADS) {
+                throw new IllegalStateException("At most " + MAX_THREADS + " threads");
+            }
+            existing = "f" + id;
+            scratch = "s" + id;
+            payload = new byte[v.fileSize];
+            ThreadLocalRandom.current().nextBytes(payload);
+            v.fs.createFile(existing);
+            v.fs.writeFile(existing, payload);
+        }
+    }
+
+    @Benchmark
+    public byte[] read(Volume v, Client c) throws Exception {
+        return v.fs.readFile(c.existing);
+    }
+
+    @Benchmark
+    public void write(Volume v, Client c) throws Exception {
+        v.fs.writeFile(c.existing, c.payload);
+    }
+
+    @Benchmark
+    public void createDelete(Volume v, Client c) throws Exception {
+        v.fs.createFile(c.scratch);
+        v.fs.deleteFile(c.scratch);
+    }
+
+    // A short-lived file: create, fill, read back, delete
+    @Benchmark
+    public byte[] lifecycle(Volume v, Client c) throws Exception {
+        v.fs.createFile(c.scratch);
+        try {
+            v.fs.writeFile(c.scratch, c.payload);
+            return v.fs.readFile(c.scratch);
+        } finally {
+            v.fs.deleteFile(c.scratch);
+        }
+    }
+}
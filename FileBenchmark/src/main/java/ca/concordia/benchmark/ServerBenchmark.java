@@ -0,0 +1,171 @@
+package ca.concordia.benchmark;
+
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.device.BlockDevice;
+import ca.concordia.server.FileServer;
+import ca.concordia.server.NioFileServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// End to end over TCP on localhost: each benchmark thread is one client with its own connection and files,
+// so the thread count is the number of concurrent clients. Measures round trips, one request at a time per client.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ServerBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Server {
+        @Param({"threads", "nio"})
+        public String engine;
+
+        @Param({"16", "1024"})
+        public int contentSize;//bytes of text per WRITE / READ
+
+        int port;
+        final AtomicInteger clientIds = new AtomicInteger();
+        private FileSystemManager fs;
+        private FileServer threadServer;
+        private NioFileServer nioServer;
+        private Path dir;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            dir = Files.createTempDirectory("serverbench");
+            BlockDevice data = FileSystemManager.openDevice(dir.resolve("bench.dat").toString(), 256L * 1024 * 1024, 4096, BlockDevice.Type.CHANNEL);
+            BlockDevice log = BlockDevice.open(dir.resolve("bench.journal").toString(), FileSystemManager.DEFAULT_JOURNAL_SIZE, BlockDevice.Type.CHANNEL);
+            fs = new FileSystemManager(data, log, 4096, 4096);
+            try (ServerSocket probe = new ServerSocket(0)) {
+                port = probe.getLocalPort();//free port, released again right before the server binds it
+            }
+            Thread t;
+            if (engine.equals("nio")) {
+                nioServer = new NioFileServer(port, fs, NioFileServer.defaultLoopCount());
+                t = new Thread(nioServer::start, "bench-server");
+            } else {
+                threadServer = new FileServer(port, fs, FileServer.ExecutionMode.VIRTUAL);
+                t = new Thread(threadServer::start, "bench-server");
+            }
+            t.setDaemon(true);
+            t.start();
+            waitUntilListening();
+        }
+
+        private void waitUntilListening() throws Exception {
+            for (int i = 0; i < 100; i++) {
+                try (Socket ignored = new Socket("localhost", port)) {
+                    return;
+                } catch (IOException e) {
+                    Thread.sleep(50);
+                }
+            }
+            throw new IOException("Server did not start on port " + port);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            if (nioServer != null) nioServer.stop(2000);
+            if (threadServer != null) threadServer.stop(2000);
+            fs.close();
+            try (var files = Files.list(dir)) {
+                for (Path p : (Iterable<Path>) files::iterator) {
+                    Files.delete(p);
+                }
+            }
+            Files.delete(dir);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        private Socket socket;
+        private BufferedReader in;
+        private PrintWriter out;
+        String file;
+        String scratch;
+        String content;
+
+        @Setup(Level.Trial)
+        public void setUp(Server s) throws IOException {
+            int id = s.clientIds.getAndIncrement();
+            socket = new Socket("localhost", s.port);
+            socket.setTcpNoDelay(true);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = new PrintWriter(socket.getOutputStream(), false, StandardCharsets.UTF_8);
+            file = "c" + id;
+            scratch = "t" + id;
+            content = "x".repeat(s.contentSize);
+            expect(request("CREATE " + file), "SUCCESS");
+            expect(request("WRITE " + file + " " + content), "SUCCESS");
+        }
+
+        // Only closes the socket: the server may already be stopping, JMH does not order this against Server.tearDown
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            socket.close();
+        }
+
+        String request(String line) throws IOException {
+            out.print(line);
+            out.print('\n');
+            out.flush();
+            String reply = in.readLine();
+            if (reply == null) {
+                throw new IOException("Server closed the connection");
+            }
+            return reply;
+        }
+
+        static void expect(String reply, String expected) throws IOException {
+            if (!reply.equals(expected)) {
+                throw new IOException("Unexpected reply: " + reply);
+            }
+        }
+    }
+
+    @Benchmark
+    public String read(Client c) throws IOException {
+        return c.request("READ " + c.file);
+    }
+
+    @Benchmark
+    public void write(Client c) throws IOException {
+        Client.expect(c.request("WRITE " + c.file + " " + c.content), "SUCCESS");
+    }
+
+    @Benchmark
+    public void createDelete(Client c) throws IOException {
+        Client.expect(c.request("CREATE " + c.scratch), "SUCCESS");
+        Client.expect(c.request("DELETE " + c.scratch), "SUCCESS");
+    }
+
+    @Benchmark
+    public String list(Client c) throws IOException {
+        return c.request("LIST");
+    }
+}
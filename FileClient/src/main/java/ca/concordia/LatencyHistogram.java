@@ -0,0 +1,72 @@
+package ca.concordia;
+
+// Latencies in nanoseconds, log-linear buckets: each power of two split into 32, so about 3% precision at any scale.
+// Not thread safe, every load worker keeps its own and they are merged at the end.
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long sum;
+    private long max;
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        counts[indexOf(nanos)]++;
+        count++;
+        sum += nanos;
+        max = Math.max(max, nanos);
+    }
+
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    // Upper bound of the bucket holding the percentile (0-100)
+    public long getPercentile(double percentile) {
+        if (count == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max);
+            }
+        }
+        return max;
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    private static long upperBound(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long base = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return base + (1L << shift) - 1;
+    }
+}
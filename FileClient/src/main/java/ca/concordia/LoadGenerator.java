@@ -0,0 +1,308 @@
+package ca.concordia;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+// Closed-loop load generator: N connections, each on its own virtual thread, send one request, wait for the reply,
+// pick the next operation from the mix. Run it with several connection counts to find where throughput stops growing
+// and latency takes off.
+//
+//   java -cp FileClient/target/classes ca.concordia.Main load [--host=localhost] [--port=12345]
+//        [--connections=1,4,16,64] [--duration=10] [--warmup=2] [--mix=read-heavy] [--files=100] [--size=1024] [--seed=1]
+//
+// --mix is read-heavy, write-heavy, churn, mixed, or weights like read=70,write=20,create=5,delete=5.
+// Operations: read, write and append pick one of --files shared files of --size bytes; create and delete work on
+// files private to the connection; list lists everything. The server volume must be big enough for the working set.
+public class LoadGenerator {
+
+    enum Op { READ, WRITE, APPEND, CREATE, DELETE, LIST }
+
+    private static final Map<String, String> MIXES = new LinkedHashMap<>();
+    static {
+        MIXES.put("read-heavy", "read=90,write=10");
+        MIXES.put("write-heavy", "read=10,write=90");
+        MIXES.put("churn", "create=50,delete=50");
+        MIXES.put("mixed", "read=60,write=20,append=5,create=5,delete=5,list=5");
+    }
+
+    private static final int MAX_PRIVATE_FILES = 16;//per connection, create turns into delete beyond this
+
+    private String host = "localhost";
+    private int port = 12345;
+    private int[] connectionSteps = {1, 4, 16, 64};
+    private long durationMillis = 10_000;
+    private long warmupMillis = 2_000;
+    private String mixName = "read-heavy";
+    private Op[] mix;//100 slots, each operation as often as its weight
+    private int files = 100;
+    private int size = 1024;
+    private long seed = 1;
+    private String content;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator g = new LoadGenerator();
+        g.parse(args);
+        g.run();
+    }
+
+    private void parse(String[] args) {
+        for (String arg : args) {
+            String[] kv = arg.split("=", 2);
+            if (kv.length < 2) {
+                throw new IllegalArgumentException("Options look like --name=value: " + arg);
+            }
+            switch (kv[0]) {
+                case "--host" -> host = kv[1];
+                case "--port" -> port = Integer.parseInt(kv[1]);
+                case "--connections" -> {
+                    String[] parts = kv[1].split(",");
+                    connectionSteps = new int[parts.length];
+                    for (int i = 0; i < parts.length; i++) {
+                        connectionSteps[i] = Integer.parseInt(parts[i].trim());
+                    }
+                }
+                case "--duration" -> durationMillis = (long) (Double.parseDouble(kv[1]) * 1000);
+                case "--warmup" -> warmupMillis = (long) (Double.parseDouble(kv[1]) * 1000);
+                case "--mix" -> mixName = kv[1];
+                case "--files" -> files = Integer.parseInt(kv[1]);
+                case "--size" -> size = Integer.parseInt(kv[1]);
+                case "--seed" -> seed = Long.parseLong(kv[1]);
+                default -> throw new IllegalArgumentException("Unknown option " + kv[0]);
+            }
+        }
+        mix = parseMix(MIXES.getOrDefault(mixName, mixName));
+        content = "x".repeat(size);//text protocol, so the content is one line without spaces that matter
+    }
+
+    private static Op[] parseMix(String weights) {
+        Map<Op, Integer> w = new EnumMap<>(Op.class);
+        int total = 0;
+        for (String part : weights.split(",")) {
+            String[] kv = part.split("=");
+            if (kv.length != 2) {
+                throw new IllegalArgumentException("Bad mix entry " + part + ", expected e.g. read=70");
+            }
+            int weight = Integer.parseInt(kv[1].trim());
+            w.merge(Op.valueOf(kv[0].trim().toUpperCase()), weight, Integer::sum);
+            total += weight;
+        }
+        if (total <= 0) {
+            throw new IllegalArgumentException("Mix weights must add up to more than 0");
+        }
+        Op[] slots = new Op[100];
+        int slot = 0;
+        int acc = 0;
+        for (Map.Entry<Op, Integer> e : w.entrySet()) {
+            acc += e.getValue();
+            int until = (int) Math.round(acc * 100.0 / total);
+            while (slot < until) {
+                slots[slot++] = e.getKey();
+            }
+        }
+        return slots;
+    }
+
+    private void run() throws Exception {
+        System.out.println("Load test against " + host + ":" + port + ", mix " + mixName + ", " + files + " files of "
+                + size + " bytes, " + durationMillis / 1000.0 + "s per step after " + warmupMillis / 1000.0 + "s warmup");
+        prepare();
+        System.out.printf("%11s %10s %8s %9s %9s %9s %9s %9s%n",
+                "connections", "ops/s", "errors", "mean(us)", "p50(us)", "p99(us)", "p999(us)", "max(us)");
+        for (int connections : connectionSteps) {
+            step(connections);
+        }
+    }
+
+    // Creates and fills the shared files, existing ones from an earlier run are reused
+    private void prepare() throws IOException {
+        try (Connection c = new Connection()) {
+            for (int i = 0; i < files; i++) {
+                String reply = c.request("CREATE " + sharedName(i));
+                if (reply.startsWith("ERROR") && !reply.contains("already exists")) {
+                    throw new IOException("Setup failed: " + reply);
+                }
+                reply = c.request("WRITE " + sharedName(i) + " " + content);
+                if (reply.startsWith("ERROR")) {
+                    throw new IOException("Setup failed: " + reply);
+                }
+            }
+        }
+    }
+
+    private void step(int connections) throws InterruptedException {
+        long start = System.nanoTime();
+        long recordFrom = start + warmupMillis * 1_000_000;
+        long end = recordFrom + durationMillis * 1_000_000;
+        List<Worker> workers = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            Worker w = new Worker(i, recordFrom, end, new Random(seed * 31 + i));
+            workers.add(w);
+            threads.add(Thread.startVirtualThread(w));
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        LatencyHistogram all = new LatencyHistogram();
+        Map<Op, LatencyHistogram> byOp = new EnumMap<>(Op.class);
+        long errors = 0;
+        int failed = 0;
+        long lastDone = recordFrom;
+        for (Worker w : workers) {
+            lastDone = Math.max(lastDone, w.lastDone);
+            for (Map.Entry<Op, LatencyHistogram> e : w.latency.entrySet()) {
+                all.add(e.getValue());
+                byOp.computeIfAbsent(e.getKey(), k -> new LatencyHistogram()).add(e.getValue());
+            }
+            errors += w.errors;
+            if (w.failure != null) {
+                failed++;
+                if (failed == 1) {
+                    System.err.println("Connection failed: " + w.failure.getMessage());
+                }
+            }
+        }
+        // Requests started before the end run past it, so rates are over the window that actually holds the recorded ones
+        double seconds = Math.max(lastDone - recordFrom, 1) / 1e9;
+        System.out.printf("%11d %10.0f %8d %9.1f %9.1f %9.1f %9.1f %9.1f%n", connections, all.getCount() / seconds, errors,
+                all.getMean() / 1000, all.getPercentile(50) / 1000.0, all.getPercentile(99) / 1000.0,
+                all.getPercentile(99.9) / 1000.0, all.getMax() / 1000.0);
+        if (byOp.size() > 1) {
+            for (Map.Entry<Op, LatencyHistogram> e : byOp.entrySet()) {
+                LatencyHistogram h = e.getValue();
+                System.out.printf("%11s %10.0f %8s %9.1f %9.1f %9.1f %9.1f %9.1f%n", e.getKey().name().toLowerCase(),
+                        h.getCount() / seconds, "", h.getMean() / 1000, h.getPercentile(50) / 1000.0,
+                        h.getPercentile(99) / 1000.0, h.getPercentile(99.9) / 1000.0, h.getMax() / 1000.0);
+            }
+        }
+        if (failed > 0) {
+            System.err.println(failed + " of " + connections + " connections failed");
+        }
+    }
+
+    private static String sharedName(int i) {
+        return "lg" + i;
+    }
+
+    private class Worker implements Runnable {
+        final Map<Op, LatencyHistogram> latency = new EnumMap<>(Op.class);
+        long errors;
+        long lastDone;//completion time of the last recorded request, 0 if none
+        Exception failure;
+        private final int id;
+        private final long recordFrom;
+        private final long end;
+        private final Random random;
+        private final List<String> privateFiles = new ArrayList<>();
+        private int created;
+        private int victim;//index in privateFiles of the file the pending DELETE removes
+
+        Worker(int id, long recordFrom, long end, Random random) {
+            this.id = id;
+            this.recordFrom = recordFrom;
+            this.end = end;
+            this.random = random;
+        }
+
+        @Override
+        public void run() {
+            try (Connection c = new Connection()) {
+                try {
+                    long now;
+                    while ((now = System.nanoTime()) < end) {
+                        Op op = mix[random.nextInt(mix.length)];
+                        if (op == Op.CREATE && privateFiles.size() >= MAX_PRIVATE_FILES) op = Op.DELETE;
+                        if (op == Op.DELETE && privateFiles.isEmpty()) op = Op.CREATE;
+                        String reply = c.request(requestFor(op));
+                        long done = System.nanoTime();
+                        boolean error = reply.startsWith("ERROR");
+                        if (!error) {
+                            applied(op);
+                        } else if (op == Op.CREATE) {
+                            created++;//the name may be left over from an earlier run, the next CREATE tries another
+                        }
+                        if (now >= recordFrom) {
+                            latency.computeIfAbsent(op, k -> new LatencyHistogram()).record(done - now);
+                            if (error) errors++;
+                            lastDone = done;
+                        }
+                    }
+                } finally {
+                    for (String name : privateFiles) {
+                        c.request("DELETE " + name);//leave the volume as we found it
+                    }
+                }
+            } catch (Exception e) {
+                failure = e;
+            }
+        }
+
+        private String requestFor(Op op) {
+            return switch (op) {
+                case READ -> "READ " + sharedName(random.nextInt(files));
+                case WRITE -> "WRITE " + sharedName(random.nextInt(files)) + " " + content;
+                case APPEND -> "APPEND " + sharedName(random.nextInt(files)) + " " + content;
+                case CREATE -> "CREATE " + nextPrivateName();
+                case DELETE -> {
+                    victim = random.nextInt(privateFiles.size());//not always the newest, or old names would never free up
+                    yield "DELETE " + privateFiles.get(victim);
+                }
+                case LIST -> "LIST";
+            };
+        }
+
+        private String nextPrivateName() {
+            return "c" + Integer.toString(id, 36) + "_" + Integer.toString(created, 36);//at most 11 characters below 46656 connections
+        }
+
+        private void applied(Op op) {
+            if (op == Op.CREATE) {
+                privateFiles.add(nextPrivateName());
+                created++;
+            } else if (op == Op.DELETE) {
+                privateFiles.set(victim, privateFiles.get(privateFiles.size() - 1));
+                privateFiles.remove(privateFiles.size() - 1);
+            }
+        }
+    }
+
+    // One text-protocol connection, a request is one line and so is its reply
+    private class Connection implements AutoCloseable {
+        private final Socket socket;
+        private final BufferedReader in;
+        private final OutputStream out;
+
+        Connection() throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = socket.getOutputStream();
+        }
+
+        String request(String line) throws IOException {
+            out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            String reply = in.readLine();
+            if (reply == null) {
+                throw new IOException("Server closed the connection");
+            }
+            return reply;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -5,12 +5,17 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.util.Arrays;
 import java.util.Scanner;
 
 // Press Shift twice to open the Search Everywhere dialog and type `show whitespaces`,
 // then press Enter. You can now see whitespace characters in your code.
 public class Main {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("load")) {//load generator instead of the interactive client
+            LoadGenerator.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
         //Socket CLient
         System.out.println("Hello and welcome!");
         Scanner scanner = new Scanner(System.in);
@@ -1,15 +1,117 @@
 package ca.concordia;
 
-import java.io.FileNotFoundException;
+import java.io.IOException;
 
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.device.BlockDevice;
 import ca.concordia.server.FileServer;
+import ca.concordia.server.NioFileServer;
 
 public class Main {
-    public static void main(String[] args) throws FileNotFoundException {
+    public static void main(String[] args) throws IOException {
         System.out.printf("Hello and welcome!");
 
-        FileServer server = new FileServer(12345, "filesystem.dat", 10 * 128);
+        //optional flags: --engine=threads|nio --mode=virtual|bounded --workers=N --queue=N --backlog=N --loops=N
+        //                --size=BYTES --block-size=BYTES --max-files=N --device=channel|mapped
+        //                --flush-interval=MILLIS --journal=PATH|off --journal-size=BYTES --cache=BYTES
+        //                --stats-interval=MILLIS (0 = no periodic stats dump)
+        //                --compact-interval=MILLIS (0 = no background compaction) --compact-budget=MICROS
+        //                --scrub=on|off (zero the blocks of deleted files in the background)
+        //                --dedup=on|off --compress=on|off (both off by default)
+        String engine = "threads";
+        FileServer.ExecutionMode mode = FileServer.ExecutionMode.VIRTUAL;
+        int workers = -1;
+        int queue = -1;
+        int backlog = -1;
+        int loops = -1;
+        long size = 10 * 128;
+        int blockSize = FileSystemManager.DEFAULT_BLOCK_SIZE;
+        int maxFiles = 0;
+        BlockDevice.Type device = BlockDevice.Type.CHANNEL;
+        long flushInterval = 0;
+        String journal = "filesystem.journal";
+        long journalSize = FileSystemManager.DEFAULT_JOURNAL_SIZE;
+        long cacheSize = FileSystemManager.DEFAULT_CACHE_SIZE;
+        long statsInterval = 60_000;
+        long compactInterval = 0;
+        long compactBudget = FileSystemManager.DEFAULT_COMPACT_BUDGET_MICROS;
+        boolean scrub = true;
+        boolean dedup = false;
+        boolean compress = false;
+        for (String arg : args) {
+            String[] kv = arg.split("=", 2);
+            if (kv.length < 2) continue;
+            switch (kv[0]) {
+                case "--engine" -> engine = kv[1].toLowerCase();
+                case "--mode" -> mode = FileServer.ExecutionMode.valueOf(kv[1].toUpperCase());
+                case "--workers" -> workers = Integer.parseInt(kv[1]);
+                case "--queue" -> queue = Integer.parseInt(kv[1]);
+                case "--backlog" -> backlog = Integer.parseInt(kv[1]);
+                case "--loops" -> loops = Integer.parseInt(kv[1]);
+                case "--size" -> size = Long.parseLong(kv[1]);
+                case "--block-size" -> blockSize = Integer.parseInt(kv[1]);
+                case "--max-files" -> maxFiles = Integer.parseInt(kv[1]);
+                case "--device" -> device = BlockDevice.Type.valueOf(kv[1].toUpperCase());
+                case "--flush-interval" -> flushInterval = Long.parseLong(kv[1]);
+                case "--journal" -> journal = kv[1];
+                case "--journal-size" -> journalSize = Long.parseLong(kv[1]);
+                case "--cache" -> cacheSize = Long.parseLong(kv[1]);
+                case "--stats-interval" -> statsInterval = Long.parseLong(kv[1]);
+                case "--compact-interval" -> compactInterval = Long.parseLong(kv[1]);
+                case "--compact-budget" -> compactBudget = Long.parseLong(kv[1]);
+                case "--scrub" -> scrub = !kv[1].equalsIgnoreCase("off");
+                case "--dedup" -> dedup = kv[1].equalsIgnoreCase("on");
+                case "--compress" -> compress = kv[1].equalsIgnoreCase("on");
+                default -> System.err.println("Unknown option " + kv[0]);
+            }
+        }
+
+        BlockDevice journalDevice = journal.equals("off") ? null : BlockDevice.open(journal, journalSize, BlockDevice.Type.CHANNEL);
+        FileSystemManager fs = new FileSystemManager(FileSystemManager.openDevice("filesystem.dat", size, blockSize, device), journalDevice, blockSize, maxFiles);
+        fs.setMetadataFlushInterval(flushInterval);
+        fs.setCacheSize(cacheSize);
+        fs.setCompaction(compactInterval, compactBudget);
+        fs.setScrubDeleted(scrub);
+        fs.setDedup(dedup);
+        fs.setCompression(compress);
+        if (statsInterval > 0) {
+            fs.getMetrics().startReporter(statsInterval, System.out);
+        }
+
+        if (engine.equals("nio")) {
+            NioFileServer server = new NioFileServer(12345, fs, loops > 0 ? loops : NioFileServer.defaultLoopCount());
+            if (backlog > 0) {
+                server.setBacklog(backlog);
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                server.stop(5000);
+                closeFileSystem(fs);
+            }));
+            server.start();
+            return;
+        }
+
+        FileServer server = new FileServer(12345, fs, mode);
+        if (workers > 0 || queue >= 0) {
+            server.setBoundedPool(workers > 0 ? workers : 256, queue >= 0 ? queue : 1024);
+        }
+        if (backlog > 0) {
+            server.setBacklog(backlog);
+        }
+        //drain in-flight requests on Ctrl+C / SIGTERM
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop(5000);
+            closeFileSystem(fs);//writes out deferred metadata
+        }));
         // Start the file server
         server.start();
     }
-}
\ No newline at end of file
+
+    private static void closeFileSystem(FileSystemManager fs) {
+        try {
+            fs.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close file system: " + e.getMessage());
+        }
+    }
+}
@@ -1,291 +1,2280 @@
 package ca.concordia.filesystem;
 
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
+import ca.concordia.filesystem.datastructures.BlockBitmap;
+import ca.concordia.filesystem.datastructures.BlockCache;
+import ca.concordia.filesystem.datastructures.ExtentAllocator;
 import ca.concordia.filesystem.datastructures.FEntry;
 import ca.concordia.filesystem.datastructures.FNode;
+import ca.concordia.filesystem.datastructures.NameIndex;
+import ca.concordia.filesystem.datastructures.Superblock;
+import ca.concordia.filesystem.device.BlockDevice;
+import ca.concordia.metrics.Histogram;
+import ca.concordia.metrics.Metrics;
 
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32C;
 
-public class FileSystemManager {
+public final class FileSystemManager {
 
-    private final int MAXFILES = 5;
-    private final int MAXBLOCKS = 10;
+    public interface SizeListener {
+        void size(long bytes) throws IOException;
+    }
+
+    public interface BatchTask {
+        void run() throws Exception;
+    }
+
+    // Destination of a read that should not allocate, e.g. a reply buffer a connection reuses. reserve() is called once,
+    // while the file is locked, with the exact length and returns where in array() the contents go.
+    public interface ReadTarget {
+        int reserve(int length) throws IOException;
+        byte[] array();
+    }
+
+    public interface ListTarget {
+        void add(String name, boolean directory);
+    }
+
+    private static class Batch {
+        final List<int[]> deferredFrees = new ArrayList<>();//old blocks of files rewritten inside the batch
+        final List<int[]> deferredScrubs = new ArrayList<>();//blocks of files deleted inside the batch
+    }
+
+    private static class StoredChain {//a chain contentIndex can hand out
+        final int[] extents;
+        final int length;//stored bytes
+
+        StoredChain(int[] extents, int length) {
+            this.extents = extents;
+            this.length = length;
+        }
+    }
+
+    public static final int DEFAULT_BLOCK_SIZE = 128;
+    private static final int DEFAULT_MAX_FILES_CAP = 65536;//upper bound when the file table size is derived from the volume size
+    private static final int METADATA_IO_SIZE = 64 * 1024;//largest single metadata write
+    public static final long DEFAULT_JOURNAL_SIZE = 16L * 1024 * 1024;
+    public static final long DEFAULT_CACHE_SIZE = 64L * 1024 * 1024;
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;//copy buffer for streamed reads and writes
+    private static final int CACHE_CHUNK_SIZE = 32 * 1024;//cached unit within an extent, at least one block
+    private static final byte RUN_ENTRIES = 'E';//kinds of slot runs in a metadata batch
+    private static final byte RUN_NODES = 'N';
+    private static final int RUN_HEADER_SIZE = 9;// kind(1) first slot(4) slot count(4)
+    public static final long DEFAULT_COMPACT_BUDGET_MICROS = 1000;
+    private static final int COMPACT_MAX_CHUNK = 1024 * 1024;//largest copy done under one lock hold
+    private static final int COMPACT_DUTY_PERCENT = 25;//share of wall time a compaction pass spends copying
+    private static final int COMPACT_PACK_THRESHOLD_PCT = 10;//free space fragmentation above which contiguous files are packed too
+    private static final int SCRUB_CHUNK_SIZE = 64 * 1024;//zeroed per step by the reclaimer
+
+    private final int maxFiles;
+    private final int totalBlocks;
+    private final int blockSize;
     private static FileSystemManager instance;
-    private final RandomAccessFile disk;
+    private final BlockDevice device; // positional I/O only, safe to use from many threads at once
     private final int metadataBlocks;
-    private final ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock();//allow multiple reads but exclusive write
-
-    private static final int BLOCK_SIZE = 128; // Example block size
+    private final ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock();//guards the namespace only: which slot holds which name
+    private final Object allocLock = new Object();//guards freeBlockList, allocator and fNode links, held only for short bookkeeping
 
     private FEntry[] fEntry; // Array of fNode, changed names for easier tracking through project
-    private boolean[] freeBlockList; // Bitmap for free blocks
+    private BlockBitmap freeBlockList; // Bitmap for free blocks
+    private final ExtentAllocator allocator;//free runs over freeBlockList, hands out contiguous blocks
     private FNode[] fNode;//changed names for easier tracking through project
+    private final NameIndex nameIndex;//full path -> fEntry slot, guarded by rwLock; resolves a path with one lookup
+    private final FEntry root = new FEntry();//the root directory, has no slot; directory contents are guarded by rwLock
+    private final int[] freeEntries;//stack of unused fEntry slots, guarded by rwLock
+    private int freeEntryCount;
+    private final BlockCache cache = new BlockCache(DEFAULT_CACHE_SIZE);//recently read data blocks, own locking
 
-    public FileSystemManager(String filename, int totalSize) throws FileNotFoundException {//add throws io exeption?
-        // Initialize the file system manager with a file
-        this.disk = new RandomAccessFile(filename, "rw");
+    // On-disk layout: superblock | fEntry table | fNode table, padded to whole blocks, then data blocks.
+    // Block numbers are absolute, block i starts at byte i * blockSize.
+    private final long entryTableOffset = Superblock.SIZE;
+    private final long nodeTableOffset;
 
-        fEntry = new FEntry[MAXFILES];
-        freeBlockList = new boolean[MAXBLOCKS];
-        fNode = new FNode[MAXBLOCKS];
+    // Metadata is written back slot by slot: mutations mark entries/nodes dirty and a flush copies the images of each
+    // run of consecutive dirty slots into a batch, then writes every run with one device write. With a flush interval
+    // the writes are deferred to a background thread.
+    private final Object flushLock = new Object();//one flusher at a time, owns batchBuffer and the spare sets
+    private final Object dirtyLock = new Object();//guards the current dirty sets
+    private BitSet dirtyEntries = new BitSet();
+    private BitSet dirtyNodes = new BitSet();
+    private BitSet spareEntries = new BitSet();
+    private BitSet spareNodes = new BitSet();
+    private byte[] batchBuffer = new byte[METADATA_IO_SIZE];//record header space, then runs of slot images
+    private volatile long flushIntervalMillis;//0 = write through on every mutation
+    private Thread flusher;
 
-        if (instance != null) {
-            throw new IllegalStateException("Already initialized");
-        }
-        instance = this;
+    // With a journal every batch is first appended to the log and forced, and only then written in place, so a crash
+    // leaves either the old or the new metadata after replay. One committer thread does this for everyone: callers
+    // take a ticket and wait, and all changes that arrive while a batch is being forced share the next force.
+    private final Journal journal;//null = metadata is written in place only
+    private final long volumeId;
+    private final Object commitLock = new Object();//guards the batch counters below
+    private long requestedBatch;//highest batch number someone waits for
+    private long startedBatch;//batches whose dirty slots have been collected
+    private long durableBatch;//batches on disk
+    private long failedBatch;
+    private IOException commitError;
+    private boolean closing;
+    private Thread committer;
+    private final ThreadLocal<Batch> currentBatch = new ThreadLocal<>();//set while runBatch() runs on a thread
+
+    // Compaction moves files into free runs lower on the volume: a file split over several runs becomes contiguous, and
+    // packing files towards the start merges the free space they leave behind. Data is copied a chunk at a time under
+    // the file's read lock, so readers go on and a writer waits for one chunk at most; the switch to the new blocks
+    // takes the write lock. A write in between voids the copy and the file is tried again in a later pass.
+    private final Object compactLock = new Object();//one pass at a time, taken before any file lock
+    private volatile long compactIntervalMillis;//0 = no background passes
+    private volatile long compactBudgetNanos = DEFAULT_COMPACT_BUDGET_MICROS * 1000;//longest a copy step keeps a file locked
+    private volatile boolean compactStopped;//set by close(), a running pass gives up
+    private Thread compactor;
+    private byte[] compactBuffer;//guarded by compactLock
+
+    // DELETE only changes metadata. The blocks of a deleted file are zeroed by a background reclaimer once the delete
+    // is committed, and only then go back to the allocator. Blocks still waiting are not free in the bitmap, but an
+    // allocation that would fail without them takes them back unscrubbed; the new contents overwrite them anyway.
+    // A crash before the reclaimer gets to them leaves them free on disk with their old bytes.
+    private final ArrayDeque<int[]> scrubQueue = new ArrayDeque<>();//{start, length} runs, guarded by allocLock
+    private int scrubPending;//blocks in scrubQueue, guarded by allocLock
+    private int scrubbing;//blocks the reclaimer is zeroing right now, guarded by allocLock
+    private boolean scrubStopped;//guarded by allocLock
+    private volatile boolean scrubDeleted = true;//false frees deleted blocks without zeroing them
+    private Thread reclaimer;//guarded by allocLock
+
+    // Deduplication: files whose stored bytes are equal share one block chain. chainOwners counts the files of every
+    // shared chain and is rebuilt at mount from the entry table; a chain is only changed or freed by its last owner.
+    // contentIndex finds chains written since mount by a hash of their bytes, which are compared before sharing.
+    private final HashMap<Integer, Integer> chainOwners = new HashMap<>();//first block -> files, two or more; guarded by allocLock
+    private final HashMap<Long, StoredChain> contentIndex = new HashMap<>();//content key -> chain, guarded by allocLock
+    private final HashMap<Integer, Long> chainKeys = new HashMap<>();//first block -> its key in contentIndex, guarded by allocLock
+    private volatile boolean dedup;
+    private volatile boolean compression;
+
+    // Instruments are looked up once here so recording on the hot path is a couple of atomic adds
+    private final Metrics metrics = new Metrics();
+    private final Histogram namespaceReadWait = metrics.histogram("fs.namespace.read.wait");
+    private final Histogram namespaceReadHold = metrics.histogram("fs.namespace.read.hold");
+    private final Histogram namespaceWriteWait = metrics.histogram("fs.namespace.write.wait");
+    private final Histogram namespaceWriteHold = metrics.histogram("fs.namespace.write.hold");
+    private final Histogram fileLockWait = metrics.histogram("fs.file.lock.wait");
+    private final Histogram journalCommit = metrics.histogram("fs.journal.commit");
+    private final LongAdder bytesRead = metrics.counter("fs.bytes.read");
+    private final LongAdder bytesWritten = metrics.counter("fs.bytes.written");
+    private final LongAdder ioErrors = metrics.counter("fs.errors.io");
+    private final Histogram compactPause = metrics.histogram("fs.compact.pause");
+    private final LongAdder compactMoved = metrics.counter("fs.compact.files.moved");
+    private final LongAdder compactBytes = metrics.counter("fs.compact.bytes.moved");
+    private final LongAdder compactVoided = metrics.counter("fs.compact.files.voided");
+    private final LongAdder scrubbedBlocks = metrics.counter("fs.scrub.blocks");
+    private final LongAdder unscrubbedBlocks = metrics.counter("fs.scrub.skipped");//taken back for an allocation first
+    private final LongAdder dedupHits = metrics.counter("fs.dedup.hits");
+    private final LongAdder dedupBytes = metrics.counter("fs.dedup.bytes.saved");//stored bytes not written thanks to a shared chain
+
+    // Lock order: compactLock -> FEntry lock -> rwLock -> flushLock -> allocLock -> dirtyLock. Creating a file takes rwLock then the lock of a free slot,
+    // which is safe because nobody holding a free slot's lock waits on rwLock. commitLock is never held while taking another lock.
+
+    public FileSystemManager(String filename, long totalSize) throws IOException {
+        this(filename, totalSize, DEFAULT_BLOCK_SIZE, 0);
+    }
 
-        //TODO Initialize the file system
-        for (int i = 0; i < MAXFILES; i++) {
-            fEntry[i] = new FEntry();//initialise file entries
+    // maxFiles <= 0 derives the file table size from the number of blocks
+    public FileSystemManager(String filename, long totalSize, int blockSize, int maxFiles) throws IOException {
+        this(openDevice(filename, totalSize, blockSize, BlockDevice.Type.CHANNEL), blockSize, maxFiles);
+    }
+
+    public FileSystemManager(BlockDevice device, int blockSize, int maxFiles) throws IOException {
+        this(device, null, blockSize, maxFiles);
+    }
+
+    // Mounts the volume if the device starts with a valid superblock (its geometry then wins over the arguments),
+    // otherwise formats it with the given geometry. A non-null journal device is replayed on mount and logs every change.
+    public FileSystemManager(BlockDevice device, BlockDevice journalDevice, int blockSize, int maxFiles) throws IOException {
+        Superblock existing = readSuperblock(device);
+        if (existing != null) {
+            blockSize = existing.getBlockSize();
+            maxFiles = existing.getMaxFiles();
         }
-        for (int i = 0; i < MAXBLOCKS; i++) {
-            fNode[i] = new FNode(i);//initialise fNodes as empty (negative index)
-            freeBlockList[i] = true; // All blocks are free initially
+        if (blockSize < 64 || Integer.bitCount(blockSize) != 1) {
+            throw new IllegalArgumentException("Block size must be a power of two of at least 64 bytes.");
         }
+        long blocks = existing != null ? existing.getTotalBlocks() : device.size() / blockSize;
+        if (blocks > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Volume has too many blocks, use a larger block size.");
+        }
+        if (blocks * blockSize > device.size()) {
+            throw new IOException("Volume is " + blocks * blockSize + " bytes but the device holds only " + device.size());
+        }
+        this.blockSize = blockSize;
+        this.totalBlocks = (int) blocks;
+        this.maxFiles = maxFiles > 0 ? maxFiles : Math.max(1, Math.min(totalBlocks / 2, DEFAULT_MAX_FILES_CAP));
 
         //reserve blocks for metadata, add metsdata size calculation
-        metadataBlocks = (int) Math.ceil((double) (MAXFILES * 15 + MAXBLOCKS * 8) / BLOCK_SIZE);//11+2+2=15 bytes per FEntry, 4+4=8 bytes per FNode
+        nodeTableOffset = entryTableOffset + (long) this.maxFiles * FEntry.DISK_SIZE;
+        long metadataBytes = nodeTableOffset + (long) totalBlocks * FNode.DISK_SIZE;
+        long reserved = (metadataBytes + blockSize - 1) / blockSize;
+        if (reserved >= totalBlocks) {
+            throw new IllegalArgumentException("Volume of " + device.size() + " bytes is too small for its metadata.");
+        }
+        metadataBlocks = (int) reserved;
+        if (existing != null && existing.getMetadataBlocks() != metadataBlocks) {
+            throw new IOException("Superblock is inconsistent: " + existing.getMetadataBlocks() + " metadata blocks recorded, " + metadataBlocks + " expected");
+        }
 
-        for (int i = 0; i < metadataBlocks; i++) {
-            freeBlockList[i] = false; // Reserve blocks for metadata
+        synchronized (FileSystemManager.class) {
+            if (instance != null) {
+                throw new IllegalStateException("Already initialized");
+            }
+            instance = this;
+        }
+        this.device = device;
+        this.journal = journalDevice != null ? new Journal(journalDevice) : null;
+        long id = existing != null ? existing.getVolumeId() : 0;
+        while (id == 0) {
+            id = ThreadLocalRandom.current().nextLong();
+        }
+        this.volumeId = id;
+
+        fEntry = new FEntry[this.maxFiles];
+        freeBlockList = new BlockBitmap(totalBlocks);
+        fNode = new FNode[totalBlocks];
+
+        for (int i = 0; i < this.maxFiles; i++) {
+            fEntry[i] = new FEntry(i);//initialise file entries
+        }
+        for (int i = 0; i < totalBlocks; i++) {
+            fNode[i] = new FNode(i);//initialise fNodes as empty (negative index), bitmap starts all free
+        }
+        if (existing != null) {
+            if (journal != null) {
+                replayJournal();//tables on disk are up to date before they are read
+            }
+            mount();//fills fEntry, fNode and the bitmap from disk
+        } else {
+            for (int i = 0; i < metadataBlocks; i++) {
+                freeBlockList.setUsed(i); // Reserve blocks for metadata
+                fNode[i].setBlockIndex(i);
+            }
+        }
+        allocator = new ExtentAllocator(freeBlockList);
+
+        nameIndex = new NameIndex(this.maxFiles);
+        freeEntries = new int[this.maxFiles];
+        rebuildIndex();
+        if (existing == null) {
+            format();
+        } else {
+            if (existing.getVolumeId() == 0) {
+                writeSuperblock();//volume from before ids, give it one
+            }
+            flushInPlace();//persists anything mount() had to repair
+        }
+        if (journal != null) {
+            device.force();//the log is emptied next, so everything it held must be on the volume
+            journal.reset(volumeId);
+            committer = new Thread(this::commitLoop, "journal-committer");
+            committer.setDaemon(true);
+            committer.start();
         }
+        registerGauges();
+    }
+
+    public int getBlockSize() {
+        return blockSize;
     }
 
+    public int getTotalBlocks() {
+        return totalBlocks;
+    }
+
+    public int getMaxFiles() {
+        return maxFiles;
+    }
+
+    // Paths are names joined by '/', e.g. "docs/a.txt", relative to the root directory; each name is at most 11 bytes
     public void createFile(String fileName) throws Exception {
-        rwLock.readLock().lock();
+        createEntry(fileName, false);
+    }
+
+    public void createDirectory(String path) throws Exception {
+        createEntry(path, true);
+    }
+
+    private void createEntry(String fileName, boolean directory) throws Exception {
+        if (fileName == null || fileName.isEmpty()) {
+            throw new IllegalArgumentException("File name cannot be null or empty");
+        }
+        int slash = fileName.lastIndexOf('/');
+        String name = fileName.substring(slash + 1);
+        if (name.isEmpty() || slash == 0) {
+            throw new IllegalArgumentException("Invalid path " + fileName);
+        }
+        if (FEntry.nameTooLong(name)) {
+            throw new IllegalArgumentException("Filename cannot be longer than 11 characters.");
+        }
+
+        FEntry free = null;
+        long acquired = lockNamespace(true);//check and insert under one lock so two clients cannot create the same name
         try {
-            if (fileName == null || fileName.isEmpty()) {
-                throw new IllegalArgumentException("File name cannot be null or empty");
+            FEntry parent = slash < 0 ? root : findEntry(fileName.substring(0, slash));
+            if (parent == null || !parent.isDirectory()) {
+                throw new Exception("Directory " + fileName.substring(0, slash) + " does not exist.");
             }
             // Check if file already exists
-            for (FEntry entry : fEntry) {
-                if (entry.isUsed() && entry.getFilename().equals(fileName)) {
-                    throw new Exception("File already exists.");
-                }
+            if (parent.getChildren().containsKey(name)) {
+                throw new Exception("File already exists.");
             }
-        } finally {
-            rwLock.readLock().unlock();
-        }
 
-        rwLock.writeLock().lock();
-        try {
             // Find a free FEntry
-            boolean created = false;
-            for (FEntry entry : fEntry) {
-                if (!entry.isUsed()) {
-                    entry.setFilename(fileName);
-                    entry.setFilesize((short) 0);
-                    entry.setFirstBlock((short) -1);
-                    writeMetadataToDisk();
-                    created = true;
-                    System.out.println("Created file: " + fileName);
-                    break;
-                }
-            }
-
-            if (!created) {
+            if (freeEntryCount == 0) {
                 throw new Exception("Maximum file limit reached.");
             }
+            int slot = freeEntries[--freeEntryCount];
+            free = fEntry[slot];
 
+            free.getLock().writeLock().lock();//waits out anyone still holding the slot from a lookup of a deleted file
+            free.setFilename(name);
+            free.setFilesize(0);
+            free.setFirstBlock(-1);
+            free.setCompressedSize(0);
+            free.setParent(parent.getIndex());
+            free.setDirectory(directory);
+            free.bumpGeneration();
+            parent.getChildren().put(name, free);
+            nameIndex.put(fileName, slot);
         } finally {
-            rwLock.writeLock().unlock();
+            unlockNamespace(true, acquired);
+        }
+
+        try {
+            markEntryDirty(free);
+            commitMetadata();//outside rwLock so lookups of other files are not held up by disk I/O
+        } finally {
+            free.getLock().writeLock().unlock();
         }
     }
 
     // required Read, Write, Delete, List methods to be implemented
     public byte[] readFile(String fileName) throws Exception {//needs to return so cant be void
-        rwLock.readLock().lock();
+        FEntry target = lockEntry(fileName, false);
         try {
-            FEntry target = null;
-            for (FEntry e : fEntry) {
-                if (e.isUsed() && e.getFilename().equals(fileName)) {//check file exists
-                    target = e;
-                    break;
-                }
-            }
-            if (target == null) {
-                throw new Exception("ERROR: file " + fileName + " does not exist");
+            byte[] data = new byte[wholeLength(target)];
+            readWhole(target, data, 0);
+            return data;
+        } finally {
+            target.getLock().readLock().unlock();
+        }
+    }
+
+    // Same, into a buffer the caller provides; returns the length
+    public int readFile(String fileName, ReadTarget into) throws Exception {
+        FEntry target = lockEntry(fileName, false);
+        try {
+            int length = wholeLength(target);
+            int at = into.reserve(length);
+            readWhole(target, into.array(), at);
+            return length;
+        } finally {
+            target.getLock().readLock().unlock();
+        }
+    }
+
+    public void writeFile(String fileName, byte[] data) throws Exception {
+        writeBytes(fileName, data, 0, data.length);
+    }
+
+    // New contents are data[offset, offset + length), so a caller can write straight out of a larger buffer
+    public void writeFile(String fileName, byte[] data, int offset, int length) throws Exception {
+        Objects.checkFromIndexSize(offset, length, data.length);
+        writeBytes(fileName, data, offset, length);
+    }
+
+    // Writes the next length bytes of in as the new contents, copied through a small buffer so the file is never
+    // held in memory whole. in may be a socket, so the contents go to fresh blocks with no lock held and the file is
+    // only locked to switch over to them. When there is no room for both copies the old blocks are reused, with the
+    // file locked throughout. If in ends early nothing changes, unless the old blocks had to be reused; then the file is left empty.
+    public void writeFile(String fileName, InputStream in, long length) throws Exception {
+        if (length < 0) {
+            throw new Exception("ERROR: length cannot be negative");
+        }
+        lockEntry(fileName, false).getLock().readLock().unlock();//a missing file fails before the content is read
+        long blocksNeeded = (length + blockSize - 1) / blockSize;
+        int[] extents = null;
+        synchronized (allocLock) {
+            if (blocksNeeded <= freeBlocksFor(blocksNeeded)) {
+                extents = allocateExtents((int) blocksNeeded, -1);
             }
+        }
+        if (extents == null) {
+            writeContent(fileName, length, 0, null, 0, streamSource(in, length));
+            return;
+        }
 
-            byte[] data = new byte[target.getFilesize()];
-            int offset = 0;
-            int currentBlock = target.getFirstBlock();
-            while (currentBlock != -1 && offset < data.length) {//cycles through linked data blocks
-                disk.seek((currentBlock + metadataBlocks) * BLOCK_SIZE);//jump to correct memory location
-                int chunk = Math.min(BLOCK_SIZE, data.length - offset);
-                disk.readFully(data, offset, chunk);
-                offset += chunk;
-                currentBlock = fNode[currentBlock].getNext();
+        boolean installed = false;
+        try {
+            writeExtents(extents, length, streamSource(in, length));
+            FEntry target = lockEntry(fileName, true);
+            try {
+                target.bumpVersion();
+                int[] oldExtents = target.getExtents();
+                installed = true;
+                installContent(target, extents, length, 0);
+                releaseChain(oldExtents);
+            } finally {
+                target.getLock().writeLock().unlock();
+            }
+        } finally {
+            if (!installed) {
+                synchronized (allocLock) {
+                    freeExtents(extents);
+                }
             }
+        }
+    }
+
+    // Returns up to length bytes starting at offset, fewer when the file ends first
+    public byte[] readFile(String fileName, long offset, int length) throws Exception {
+        if (offset < 0 || length < 0) {
+            throw new Exception("ERROR: offset and length cannot be negative");
+        }
+        FEntry target = lockEntry(fileName, false);
+        try {
+            byte[] data = new byte[rangeLength(target, offset, length)];
+            readRange(target, offset, data, 0, data.length);
             return data;
         } finally {
-            rwLock.readLock().unlock();
+            target.getLock().readLock().unlock();
         }
     }
 
-    public void writeFile(String fileName, byte[] data) throws Exception {
-        rwLock.readLock().lock();
-        FEntry target = null;
-        int blocksNeeded = (int) Math.ceil((double) data.length / BLOCK_SIZE);
-        int freeBlocksAvailable = 0;
-        int oldBlockCount = 0;
+    public int readFile(String fileName, long offset, int length, ReadTarget into) throws Exception {
+        if (offset < 0 || length < 0) {
+            throw new Exception("ERROR: offset and length cannot be negative");
+        }
+        FEntry target = lockEntry(fileName, false);
+        try {
+            int count = rangeLength(target, offset, length);
+            int at = into.reserve(count);
+            readRange(target, offset, into.array(), at, count);
+            return count;
+        } finally {
+            target.getLock().readLock().unlock();
+        }
+    }
+
+    // Overwrites the file from offset on, growing it when data runs past the end. Offsets past the end are refused
+    // rather than leaving a hole.
+    public void writeFile(String fileName, long offset, byte[] data) throws Exception {
+        checkOffset(offset);
+        writeRange(fileName, offset, data.length, arraySource(data, 0));
+    }
+
+    public void writeFile(String fileName, long offset, byte[] data, int dataOffset, int length) throws Exception {
+        checkOffset(offset);
+        Objects.checkFromIndexSize(dataOffset, length, data.length);
+        writeRange(fileName, offset, length, arraySource(data, dataOffset));
+    }
+
+    public void writeFile(String fileName, long offset, InputStream in, long length) throws Exception {
+        checkOffset(offset);
+        writeRangeStaged(fileName, offset, in, length);
+    }
+
+    public void appendFile(String fileName, byte[] data) throws Exception {
+        writeRange(fileName, -1, data.length, arraySource(data, 0));
+    }
+
+    public void appendFile(String fileName, byte[] data, int offset, int length) throws Exception {
+        Objects.checkFromIndexSize(offset, length, data.length);
+        writeRange(fileName, -1, length, arraySource(data, offset));
+    }
+
+    public void appendFile(String fileName, InputStream in, long length) throws Exception {
+        writeRangeStaged(fileName, -1, in, length);
+    }
+
+    private static void checkOffset(long offset) throws Exception {//-1 is how the appends below ask for the end of file
+        if (offset < 0) {
+            throw new Exception("ERROR: offset and length cannot be negative");
+        }
+    }
+
+    // Ranged write from a stream that may be a socket: the bytes are read into scratch blocks with no lock held and
+    // copied from there under the file lock. Without room for the scratch copy they are read under the lock.
+    private void writeRangeStaged(String fileName, long offset, InputStream in, long length) throws Exception {
+        if (length < 0 || offset < -1) {
+            throw new Exception("ERROR: offset and length cannot be negative");
+        }
+        lockEntry(fileName, false).getLock().readLock().unlock();//a missing file fails before the content is read
+        long blocks = (length + blockSize - 1) / blockSize;
+        int[] scratch = null;
+        synchronized (allocLock) {
+            if (2 * blocks + 1 <= freeBlocksFor(2 * blocks + 1)) {//the write itself may need as many again
+                scratch = allocateExtents((int) blocks, -1);
+            }
+        }
+        if (scratch == null) {
+            writeRange(fileName, offset, length, streamSource(in, length));
+            return;
+        }
         try {
+            writeExtents(scratch, length, streamSource(in, length));
+            writeRange(fileName, offset, length, extentSource(scratch));
+        } finally {
+            synchronized (allocLock) {
+                freeExtents(scratch);//never referenced by committed metadata, so free right away
+            }
+        }
+    }
+
+    // Supplies file contents in order, length bytes at a time to the given device position
+    private interface ContentSource {
+        void copyTo(long pos, long length) throws IOException;
+    }
 
-            for (FEntry e : fEntry) {//check file exists
-                if (e.isUsed() && e.getFilename().equals(fileName)) {
-                    target = e;
-                    break;
+    private ContentSource arraySource(byte[] data, int start) {
+        int[] offset = {start};
+        return (pos, length) -> {
+            device.write(pos, data, offset[0], (int) length);//write chunk of data starting after offset
+            offset[0] += (int) length;//increase offset by last chunk size
+        };
+    }
+
+    private ContentSource streamSource(InputStream in, long length) {
+        byte[] buf = new byte[(int) Math.min(STREAM_BUFFER_SIZE, Math.max(1, length))];
+        return (pos, remaining) -> {
+            while (remaining > 0) {
+                int n = (int) Math.min(buf.length, remaining);
+                if (in.readNBytes(buf, 0, n) < n) {
+                    throw new IOException("ERROR: content ended before " + length + " bytes");
                 }
+                device.write(pos, buf, 0, n);
+                pos += n;
+                remaining -= n;
             }
-            if (target == null) {
-                throw new Exception("ERROR: file " + fileName + " does not exist");
+        };
+    }
+
+    // Copies the bytes held in extents, in order, from the device
+    private ContentSource extentSource(int[] extents) {
+        byte[] buf = new byte[STREAM_BUFFER_SIZE];
+        long[] done = {0};
+        return (pos, remaining) -> {
+            while (remaining > 0) {
+                int n = (int) Math.min(buf.length, remaining);
+                forEachRange(extents, done[0], n, (extentStart, from, at, count) -> device.read(from, buf, at, count));
+                device.write(pos, buf, 0, n);
+                done[0] += n;
+                pos += n;
+                remaining -= n;
             }
+        };
+    }
 
-            for (boolean free : freeBlockList) {//count free blocks
-                if (free) {
-                    freeBlocksAvailable++;
+    // Writes length bytes at offset (-1 = at the end) touching only the blocks in that range. Blocks the file grows by
+    // are allocated after its last block when that space is free and linked to the end of its chain. Overwritten bytes
+    // change in place, so unlike a whole-file write a crash can leave them half written; size and chain stay consistent.
+    private void writeRange(String fileName, long offset, long length, ContentSource source) throws Exception {
+        if (length < 0 || offset < -1) {
+            throw new Exception("ERROR: offset and length cannot be negative");
+        }
+        FEntry target = lockEntry(fileName, true);
+        try {
+            target.bumpVersion();//bytes change in place, a compactor copy of the old ones is void
+            boolean ownChain;
+            synchronized (allocLock) {
+                ownChain = !target.isCompressed() && !isShared(target.getExtents());
+                if (ownChain) {
+                    forgetContent(target.getExtents());//nobody may take a share of bytes about to change
                 }
             }
+            if (!ownChain) {
+                rewritePlain(target);
+            }
+            long size = target.getFilesize();
+            if (offset == -1) {
+                offset = size;
+            } else if (offset > size) {
+                throw new Exception("ERROR: offset " + offset + " is past the end of file " + fileName);
+            }
+            long newSize = Math.max(size, offset + length);
+            int[] oldExtents = target.getExtents();
+            long oldBlocks = (size + blockSize - 1) / blockSize;
+            long added = (newSize + blockSize - 1) / blockSize - oldBlocks;
+            int lastBlock = oldExtents.length > 0 ? oldExtents[oldExtents.length - 2] + oldExtents[oldExtents.length - 1] - 1 : -1;
 
-            int oldBlock = target.getFirstBlock();
-            while (oldBlock != -1) {
-                oldBlockCount++;
-                oldBlock = fNode[oldBlock].getNext();//counts bocks that will be overwritten
+            int[] grown = new int[0];
+            if (added > 0) {
+                synchronized (allocLock) {
+                    if (added > freeBlocksFor(added)) {
+                        throw new Exception("ERROR: not enough free space to write file");
+                    }
+                    grown = allocateExtents((int) added, lastBlock + 1);//right after the tail keeps the file contiguous
+                }
             }
+            int[] extents = concatExtents(oldExtents, grown);
 
-            if (blocksNeeded > freeBlocksAvailable + oldBlockCount) {//check if enough space in memory to write
-                throw new Exception("ERROR: not enough free space to write file");
+            try {
+                forEachRange(extents, offset, length, (extentStart, pos, at, count) -> {
+                    source.copyTo(pos, count);
+                    invalidateCached(extentStart, pos - blockOffset(extentStart), count);
+                });
+            } catch (IOException e) {
+                synchronized (allocLock) {
+                    freeExtents(grown);
+                }
+                throw e;
             }
 
+            if (grown.length > 0) {
+                synchronized (allocLock) {
+                    if (lastBlock != -1) {
+                        fNode[lastBlock].setNext(grown[0]);//extend the existing chain
+                        markNodesDirty(lastBlock, 1);
+                    }
+                }
+                target.setExtents(extents);
+                target.setFirstBlock(extents[0]);
+            }
+            target.setFilesize(newSize);
+            markEntryDirty(target);
+            commitMetadata();
+            bytesWritten.add(length);
         } finally {
-            rwLock.readLock().unlock();
+            target.getLock().writeLock().unlock();
+        }
+    }
+
+    // Whole-file write from memory: stored compressed if compression is on and that takes fewer blocks, and shared
+    // with a chain holding the same stored bytes if dedup is on
+    private void writeBytes(String fileName, byte[] data, int offset, int length) throws Exception {
+        int compressedSize = 0;
+        if (compression && length > blockSize) {
+            byte[] packed = Lz4.compress(data, offset, length);
+            if ((packed.length + blockSize - 1) / blockSize < (length + blockSize - 1) / blockSize) {
+                data = packed;
+                offset = 0;
+                compressedSize = packed.length;
+            }
         }
+        writeContent(fileName, length, compressedSize, dedup ? data : null, offset, arraySource(data, offset));
+    }
 
-        rwLock.writeLock().lock();
+    // Replaces the contents with length bytes from source, which holds compressedSize bytes if that is not 0. If the
+    // stored bytes are also given in content, an existing chain holding them is shared instead of writing a copy.
+    private void writeContent(String fileName, long length, int compressedSize, byte[] content, int contentOffset,
+                              ContentSource source) throws Exception {
+        long storedLength = compressedSize > 0 ? compressedSize : length;
+        long blocksNeeded = (storedLength + blockSize - 1) / blockSize;
+        long key = content != null && storedLength > 0 ? contentKey(content, contentOffset, (int) storedLength) : 0;
+
+        FEntry target = lockEntry(fileName, true);//only this file is locked, writers to other files run in parallel
         try {
-            //remove old data to be overwritten
-            int oldBlock = target.getFirstBlock();
-            while (oldBlock != -1) {//cycles through all linked data blocks
-                freeBlockList[oldBlock] = true;
-                int nextBlock = fNode[oldBlock].getNext();
-                fNode[oldBlock].setBlockIndex(-Math.abs(oldBlock));
-                fNode[oldBlock].setNext(-1);//unlinks next block
-                oldBlock = nextBlock;
-            }
-            target.setFirstBlock((short) -1);
-            target.setFilesize((short) 0);
-
-            int prevBlock = -1;//no previous block
-            int offset = 0;//no initial offset
-            for (int i = 0; i < MAXBLOCKS && blocksNeeded > 0; i++) {
-                if (freeBlockList[i]) {//checks if block is free
-                    freeBlockList[i] = false;
-                    fNode[i].setBlockIndex(i);
-                    fNode[i].setNext(-1);
-
-                    if (prevBlock != -1) {//if not first block
-                        fNode[prevBlock].setNext(i);//link previous block to current
-                    } else {
-                        target.setFirstBlock((short) i); //set first block of this file
+            target.bumpVersion();
+            int[] oldExtents = target.getExtents();
+            int[] extents = key != 0 ? shareContent(key, (int) storedLength, content, contentOffset) : null;
+            boolean shared = extents != null;
+            boolean inPlace = false;
+            if (!shared) {
+                synchronized (allocLock) {
+                    boolean oldShared = isShared(oldExtents);//blocks other files still use are not ours to reuse
+                    int oldBlockCount = 0;
+                    for (int e = 1; e < oldExtents.length && !oldShared; e += 2) {
+                        oldBlockCount += oldExtents[e];//counts bocks that will be overwritten
+                    }
+
+                    if (blocksNeeded > freeBlocksFor(blocksNeeded) + oldBlockCount) {//check if enough space in memory to write
+                        throw new Exception("ERROR: not enough free space to write file");
                     }
 
-                    prevBlock = i;
+                    // New contents go to fresh blocks so the old ones stay intact until the new metadata is committed.
+                    // Only when there is no room for both copies are the old blocks reused, which a crash can tear.
+                    inPlace = !oldShared && blocksNeeded > freeBlockList.freeCount();
+                    if (inPlace) {
+                        forgetContent(oldExtents);
+                        freeExtents(oldExtents);
+                    }
+                    extents = allocateExtents((int) blocksNeeded, -1);
+                }
 
-                    // Write data chunk to disk
-                    disk.seek((i + metadataBlocks) * BLOCK_SIZE);//location of first block start point
-                    int chunkSize = Math.min(BLOCK_SIZE, data.length - offset);//amount of data to write, a full block or remainder of file
-                    disk.write(data, offset, chunkSize);//write chunk of data starting after offset
-                    offset += chunkSize;//increase offset by last chunk size
-                    blocksNeeded--;//1 less block needed
+                try {
+                    writeExtents(extents, storedLength, source);
+                } catch (IOException e) {
+                    synchronized (allocLock) {
+                        freeExtents(extents);
+                    }
+                    if (inPlace) {
+                        target.setExtents(new int[0]);//old contents are gone already
+                        target.setFirstBlock(-1);
+                        target.setFilesize(0);
+                        target.setCompressedSize(0);
+                        markEntryDirty(target);
+                        commitMetadata();
+                    }
+                    throw e;
                 }
             }
 
-            target.setFilesize((short) data.length);//update filesize
-            writeMetadataToDisk();//update metadata on disk
+            installContent(target, extents, length, compressedSize);
+            if (key != 0 && !shared) {
+                synchronized (allocLock) {
+                    indexContent(key, extents, (int) storedLength);
+                }
+            }
+            if (!inPlace) {
+                releaseChain(oldExtents);
+            }
         } finally {
-            rwLock.writeLock().unlock();
+            target.getLock().writeLock().unlock();
+        }
+    }
+
+    // Points the file at its new contents and commits. Caller holds the entry write lock.
+    private void installContent(FEntry target, int[] extents, long length, int compressedSize) throws IOException {
+        target.setExtents(extents);
+        target.setFirstBlock(extents.length > 0 ? extents[0] : -1);
+        target.setFilesize(length);//update filesize
+        target.setCompressedSize(compressedSize);
+        markEntryDirty(target);
+        commitMetadata();//update metadata on disk
+        bytesWritten.add(length);
+    }
+
+    private void writeExtents(int[] extents, long length, ContentSource source) throws IOException {
+        long offset = 0;
+        for (int e = 0; e < extents.length; e += 2) {//one write per contiguous run instead of one per block
+            long chunkSize = Math.min((long) extents[e + 1] * blockSize, length - offset);
+            source.copyTo(blockOffset(extents[e]), chunkSize);
+            offset += chunkSize;
+        }
+    }
+
+    // Gives the file a chain of its own holding its contents uncompressed, so they can be changed in place. The old
+    // chain stays with its other owners, or is freed after the commit if there are none.
+    private void rewritePlain(FEntry target) throws Exception {//caller holds the entry write lock
+        int length = wholeLength(target);
+        byte[] plain = new byte[length];
+        readContents(target, plain, 0);
+        int[] oldExtents = target.getExtents();
+        long blocks = (length + blockSize - 1) / blockSize;
+        int[] extents;
+        synchronized (allocLock) {
+            if (blocks > freeBlocksFor(blocks)) {
+                throw new Exception("ERROR: not enough free space to write file");
+            }
+            extents = allocateExtents((int) blocks, -1);
+        }
+        try {
+            writeExtents(extents, length, arraySource(plain, 0));
+        } catch (IOException e) {
+            synchronized (allocLock) {
+                freeExtents(extents);
+            }
+            throw e;
+        }
+        target.setExtents(extents);
+        target.setFirstBlock(extents.length > 0 ? extents[0] : -1);
+        target.setCompressedSize(0);
+        markEntryDirty(target);
+        commitMetadata();
+        releaseChain(oldExtents);
+    }
+
+    // Looks for a chain holding exactly these stored bytes and takes a share of it. Returns its extents, or null.
+    private int[] shareContent(long key, int length, byte[] content, int offset) throws IOException {
+        StoredChain chain;
+        synchronized (allocLock) {
+            chain = contentIndex.get(key);
+            if (chain == null || chain.length != length) return null;
+            chainOwners.merge(chain.extents[0], 2, (owners, one) -> owners + 1);//from here on its blocks cannot change
+        }
+        byte[] existing = new byte[length];
+        readStored(chain.extents, existing, 0, length);
+        if (Arrays.equals(existing, 0, length, content, offset, offset + length)) {
+            dedupHits.increment();
+            dedupBytes.add(length);
+            return chain.extents;
+        }
+        synchronized (allocLock) {//same hash, other bytes
+            if (dropOwner(chain.extents)) {//the other owners are gone meanwhile and no entry points at it
+                unlinkExtents(chain.extents);
+                queueScrub(chain.extents);
+            }
+        }
+        return null;
+    }
+
+    // Hash of stored bytes and their length, 0 is never returned
+    private static long contentKey(byte[] data, int offset, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(data, offset, length);
+        long key = crc.getValue() << 32 ^ length;
+        return key == 0 ? 1 : key;
+    }
+
+    private boolean isShared(int[] extents) {//caller holds allocLock
+        return extents.length > 0 && chainOwners.containsKey(extents[0]);
+    }
+
+    private void indexContent(long key, int[] extents, int length) {//caller holds allocLock
+        if (extents.length > 0 && !contentIndex.containsKey(key)) {//on a collision the first chain keeps the key
+            contentIndex.put(key, new StoredChain(extents, length));
+            chainKeys.put(extents[0], key);
+        }
+    }
+
+    private void forgetContent(int[] extents) {//caller holds allocLock
+        Long key = extents.length > 0 ? chainKeys.remove(extents[0]) : null;
+        if (key != null) {
+            contentIndex.remove(key);
+        }
+    }
+
+    // Drops one file's claim on a chain. Returns true if it was the only owner, the chain is then the caller's to free.
+    private boolean dropOwner(int[] extents) {//caller holds allocLock
+        if (extents.length == 0) return false;
+        Integer owners = chainOwners.get(extents[0]);
+        if (owners == null) {
+            forgetContent(extents);
+            return true;
+        }
+        if (owners == 2) {
+            chainOwners.remove(extents[0]);
+        } else {
+            chainOwners.put(extents[0], owners - 1);
         }
+        return false;
+    }
 
+    // A file let go of extents: they are freed after the commit unless other files still share them
+    private void releaseChain(int[] extents) {
+        boolean last;
+        synchronized (allocLock) {
+            last = dropOwner(extents);
+        }
+        if (last) {
+            releaseAfterCommit(extents);
+        }
     }
 
+    // Removes a file, or a directory if it is empty
     public void deleteFile(String fileName) throws Exception {
-        rwLock.readLock().lock();
-        FEntry target = null;
+        FEntry target = lockEntry(fileName, true, true);
         try {
-            for (FEntry e : fEntry) {
-                if (e.isUsed() && e.getFilename().equals(fileName)) {//check file exists
-                    target = e;
-                    break;
+            long acquired = lockNamespace(true);//name leaves the namespace before its blocks can be handed to anyone else
+            try {
+                if (target.isDirectory() && !target.getChildren().isEmpty()) {
+                    throw new Exception("Directory " + fileName + " is not empty.");
+                }
+                freeEntries[freeEntryCount++] = nameIndex.remove(fileName);
+                (target.getParent() < 0 ? root : fEntry[target.getParent()]).getChildren().remove(target.getFilename());
+                target.setFilename("");//remove metadata
+                target.setFilesize(0);
+                target.setFirstBlock(-1);
+                target.setCompressedSize(0);
+                target.setParent(-1);
+                target.setDirectory(false);
+                target.bumpGeneration();
+            } finally {
+                unlockNamespace(true, acquired);
+            }
+            markEntryDirty(target);
+
+            int[] extents = target.getExtents();
+            boolean last;
+            synchronized (allocLock) {
+                last = dropOwner(extents);//a chain other files share stays as it is
+                if (last) {
+                    unlinkExtents(extents);//data is zeroed later by the reclaimer, not under the file lock
                 }
             }
-            if (target == null) {
-                throw new Exception("ERROR: file " + fileName + " does not exist");
+            target.setExtents(new int[0]);
+            commitMetadata();
+            if (last) {
+                scrubAfterCommit(extents);
             }
         } finally {
-            rwLock.readLock().unlock();
+            target.getLock().writeLock().unlock();
         }
+    }
+
+    // Names in the root directory
+    public List<String> listFiles() throws Exception {
+        List<String> names = new ArrayList<>();//array list to hold file names
+        listDirectory("", null, Integer.MAX_VALUE, (name, directory) -> names.add(name));
+        return names;
+    }
 
-        rwLock.writeLock().lock();
+    // Hands up to max entries of the directory ("" or "/" is the root) to into, in name order starting after the name
+    // cursor (null = from the first). Returns true if more entries follow, the last name given is then the next cursor.
+    // Runs under the namespace read lock, so into should only copy the names somewhere.
+    public boolean listDirectory(String path, String cursor, int max, ListTarget into) throws Exception {
+        long acquired = lockNamespace(false);
         try {
-            int current = target.getFirstBlock();
-            byte[] zeros = new byte[BLOCK_SIZE];
-            while (current != -1) {
-                disk.seek((current + metadataBlocks) * BLOCK_SIZE);
-                disk.write(zeros);//delete data by overwriting with zeros
-                freeBlockList[current] = true;//mark block as free
-                fNode[current].setBlockIndex(-Math.abs(current));//mark fNode as free
-                int next = fNode[current].getNext();
-                fNode[current].setNext(-1);
-                current = next;
-            }
-
-            target.setFilename("");//remove metadata
-            target.setFilesize((short) 0);
-            target.setFirstBlock((short) -1);
-            writeMetadataToDisk();
+            FEntry dir = path.isEmpty() || path.equals("/") ? root : findEntry(path);
+            if (dir == null || !dir.isDirectory()) {
+                throw new Exception("ERROR: directory " + path + " does not exist");
+            }
+            Map<String, FEntry> entries = cursor == null ? dir.getChildren() : dir.getChildren().tailMap(cursor, false);
+            int n = 0;
+            for (FEntry e : entries.values()) {
+                if (n++ == max) return true;
+                into.add(e.getFilename(), e.isDirectory());
+            }
+            return false;
         } finally {
-            rwLock.writeLock().unlock();
+            unlockNamespace(false, acquired);
         }
     }
 
-    public List<String> listFiles() throws Exception {
-        rwLock.readLock().lock();
+    // 0 disables caching
+    public void setCacheSize(long bytes) {
+        cache.setCapacity(bytes);
+    }
+
+    // Hit, miss and eviction counters for sizing the cache
+    public BlockCache getCache() {
+        return cache;
+    }
+
+    // Counts blocks of deleted files still waiting to be zeroed as free, they are handed out when needed
+    public int getFreeBlockCount() {
+        synchronized (allocLock) {
+            return freeBlockList.freeCount() + scrubPending + scrubbing;
+        }
+    }
+
+    // Off by default. Whole-file writes from memory then share the blocks of a file written since mount with the same
+    // stored bytes instead of writing a copy; a shared file is copied out again before it is changed in place.
+    public void setDedup(boolean on) {
+        dedup = on;
+    }
+
+    // Off by default. Whole-file writes from memory are then stored LZ4 compressed when that takes fewer blocks. Such a
+    // file is read by expanding it whole, and stored as is again before a WRITEAT or APPEND changes it.
+    public void setCompression(boolean on) {
+        compression = on;
+    }
+
+    // true (default) zeroes the blocks of deleted files in the background before they are reused, false just frees them
+    public void setScrubDeleted(boolean scrub) {
+        scrubDeleted = scrub;
+    }
+
+    // Counters, latency histograms and gauges of this volume; the servers record their own instruments here too
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    // Streams the file contents to out chunk by chunk and returns the byte count. The size goes to sizeListener (if not
+    // null) first, so a caller can send a length header that matches the bytes that follow. out may be a socket, so the
+    // file is only locked while a chunk is copied out, the way the compactor copies; a write or delete between two
+    // chunks ends the transfer with an error.
+    public long transferFile(String fileName, OutputStream out, SizeListener sizeListener) throws Exception {
+        FEntry entry = lockEntry(fileName, false);
+        int generation;
+        int version;
+        long size;
+        byte[] plain = null;
         try {
-        List<String> names = new ArrayList<>();//array list to hold file names
-        for (FEntry e : fEntry) {
-            if (e.isUsed()) {
-                names.add(e.getFilename());//add filename to list
+            generation = entry.getGeneration();
+            version = entry.getVersion();
+            size = entry.getFilesize();
+            if (entry.isCompressed()) {//expanded whole, compressed files were written from memory so they fit in it
+                plain = new byte[(int) size];
+                readContents(entry, plain, 0);
+                bytesRead.add(size);
             }
-        }
-        return names;
         } finally {
-            rwLock.readLock().unlock();
+            entry.getLock().readLock().unlock();
+        }
+        if (sizeListener != null) {
+            sizeListener.size(size);
         }
+        if (plain != null) {
+            out.write(plain);
+            return size;
+        }
+        byte[] buf = new byte[(int) Math.min(STREAM_BUFFER_SIZE, Math.max(1, size))];
+        for (long done = 0; done < size; ) {
+            int n = (int) Math.min(buf.length, size - done);
+            entry.getLock().readLock().lock();
+            try {
+                if (entry.getGeneration() != generation || entry.getVersion() != version) {
+                    throw new IOException("ERROR: file " + fileName + " changed while it was being sent");
+                }
+                readRange(entry, done, buf, 0, n);
+            } finally {
+                entry.getLock().readLock().unlock();
+            }
+            out.write(buf, 0, n);
+            done += n;
+        }
+        return size;
     }
 
-// Helper methods
-    private void writeMetadataToDisk() throws IOException {//use FNode??
-        disk.seek(0);
-        for (FEntry entry : fEntry) {
-            byte[] nameBytes = new byte[11];
-            if (entry.isUsed()) {
-                byte[] fnameBytes = entry.getFilename().getBytes();
-                System.arraycopy(fnameBytes, 0, nameBytes, 0, fnameBytes.length);//copy filename into byte array:(SourceArray, position, destArr, pos, length)
+    // 0 writes metadata through on every change (default). A positive interval only marks slots dirty and lets a
+    // background thread write them out, so bursts of changes to the same slots cost one write.
+    public synchronized void setMetadataFlushInterval(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Flush interval cannot be negative.");
+        }
+        flushIntervalMillis = millis;
+        if (millis > 0 && flusher == null) {
+            flusher = new Thread(this::flushLoop, "metadata-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        } else if (flusher != null) {
+            notifyAll();//picks up the new interval, or exits when it is 0
+            if (millis == 0) {
+                flusher = null;
             }
-            disk.write(nameBytes);
-            disk.writeShort(entry.getFilesize());
-            disk.writeShort(entry.getFirstBlock());
         }
-        for (FNode node : fNode) {
-            disk.writeInt(node.getBlockIndex());
-            disk.writeInt(node.getNext());
+    }
+
+    // Writes every dirty entry and node slot to the device, through the journal when there is one
+    public void flushMetadata() throws IOException {
+        if (journal != null) {
+            awaitCommit(requestCommit());
+        } else {
+            flushInPlace();
         }
+    }
 
+    // Runs several operations of the calling thread with one metadata commit at the end instead of one each.
+    // Every operation still takes its own file lock and is applied when it returns; only durability is shared, and
+    // operations that failed do not undo the others.
+    public void runBatch(BatchTask task) throws Exception {
+        if (currentBatch.get() != null) {
+            task.run();//already inside a batch
+            return;
+        }
+        Batch batch = new Batch();
+        currentBatch.set(batch);
+        try {
+            task.run();
+        } finally {
+            currentBatch.remove();
+            commitMetadata();//whatever ran is made durable even if the task failed part way
+            synchronized (allocLock) {//skipped if the commit failed, the blocks then stay unused until the next mount
+                for (int[] extents : batch.deferredFrees) {
+                    freeExtents(extents);
+                }
+                for (int[] extents : batch.deferredScrubs) {
+                    queueScrub(extents);
+                }
+            }
+        }
+    }
+
+    // 0 turns background compaction off. Otherwise a pass runs every intervalMillis; pauseBudgetMicros bounds how long one
+    // copy step may hold a file's lock, the chunk size adapts to stay under it.
+    public synchronized void setCompaction(long intervalMillis, long pauseBudgetMicros) {
+        if (intervalMillis < 0 || pauseBudgetMicros <= 0) {
+            throw new IllegalArgumentException("Compaction interval cannot be negative and the budget must be positive.");
+        }
+        compactBudgetNanos = pauseBudgetMicros * 1000;
+        compactIntervalMillis = intervalMillis;
+        if (intervalMillis > 0 && compactor == null) {
+            compactor = new Thread(this::compactLoop, "compactor");
+            compactor.setDaemon(true);
+            compactor.start();
+        } else if (compactor != null) {
+            notifyAll();
+            if (intervalMillis == 0) {
+                compactor = null;
+            }
+        }
+    }
+
+    // One compaction pass now: every file in more than one run moves to the lowest free run that holds it whole, and
+    // when free space is fragmented, contiguous files move down into holes too. Returns the number of files moved.
+    public int compact() throws IOException {
+        synchronized (compactLock) {
+            boolean pack;
+            synchronized (allocLock) {
+                pack = freeFragmentationPct() >= COMPACT_PACK_THRESHOLD_PCT;
+            }
+            int[] order = compactionOrder();
+            int moved = 0;
+            for (int slot : order) {
+                if (compactStopped) break;
+                if (moveFile(fEntry[slot], pack)) {
+                    moved++;
+                }
+            }
+            return moved;
+        }
+    }
+
+    public void close() throws IOException {
+        synchronized (FileSystemManager.class) {
+            stopCompactor();
+            stopReclaimer();
+            setMetadataFlushInterval(0);
+            flushMetadata();
+            if (journal != null) {
+                synchronized (commitLock) {
+                    closing = true;
+                    commitLock.notifyAll();
+                }
+                try {
+                    committer.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                device.force();
+                journal.reset(volumeId);//clean shutdown, nothing to replay on the next mount
+                journal.close();
+            }
+            device.close();
+            if (instance == this) {
+                instance = null;
+            }
+        }
+    }
+
+// Helper methods
+    public static BlockDevice openDevice(String filename, long totalSize, int blockSize, BlockDevice.Type type) throws IOException {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("Block size must be positive.");
+        }
+        return BlockDevice.open(filename, totalSize - totalSize % blockSize, type);//whole blocks only
+    }
+
+    private long blockOffset(int block) {
+        return (long) block * blockSize;
+    }
+
+    private FEntry findEntry(String fileName) {//caller holds rwLock
+        int slot = nameIndex.get(fileName);
+        return slot < 0 ? null : fEntry[slot];
+    }
+
+    // Rebuilds the path index, the directory contents and the free slot stack from the fEntry table
+    private void rebuildIndex() {
+        nameIndex.clear();
+        root.setDirectory(true);
+        String[] paths = new String[maxFiles];
+        for (int slot : treeOrder()) {//mount() dropped every entry this walk cannot reach
+            FEntry entry = fEntry[slot];
+            int parent = entry.getParent();
+            paths[slot] = parent < 0 ? entry.getFilename() : paths[parent] + "/" + entry.getFilename();
+            (parent < 0 ? root : fEntry[parent]).getChildren().put(entry.getFilename(), entry);
+            nameIndex.put(paths[slot], slot);
+        }
+        freeEntryCount = 0;
+        for (int i = maxFiles - 1; i >= 0; i--) {//pushed in reverse so the lowest free slot is handed out first
+            if (!fEntry[i].isUsed()) {
+                freeEntries[freeEntryCount++] = i;
+            }
+        }
+    }
+
+    // Used slots reachable from the root through directories, every directory before its contents. An entry whose
+    // parent is missing, not a directory or part of a cycle is left out.
+    private int[] treeOrder() {
+        int[] firstChild = new int[maxFiles + 1];//by parent slot + 1, 0 is the root
+        int[] nextSibling = new int[maxFiles];
+        Arrays.fill(firstChild, -1);
+        for (int i = maxFiles - 1; i >= 0; i--) {
+            int parent = fEntry[i].getParent();
+            if (!fEntry[i].isUsed() || parent < -1 || parent >= maxFiles) continue;
+            nextSibling[i] = firstChild[parent + 1];
+            firstChild[parent + 1] = i;
+        }
+        int[] order = new int[maxFiles];
+        int n = 0;
+        for (int c = firstChild[0]; c != -1; c = nextSibling[c]) {
+            order[n++] = c;
+        }
+        for (int i = 0; i < n; i++) {//breadth first, n grows as directories are reached
+            if (!fEntry[order[i]].isDirectory()) continue;
+            for (int c = firstChild[order[i] + 1]; c != -1; c = nextSibling[c]) {
+                order[n++] = c;
+            }
+        }
+        return Arrays.copyOf(order, n);
+    }
+
+    // Looks the file up and returns it with its own lock held. If the slot was deleted or re-created between the
+    // lookup and the lock, the generation no longer matches and the lookup is repeated.
+    private FEntry lockEntry(String fileName, boolean exclusive) throws Exception {
+        return lockEntry(fileName, exclusive, false);
+    }
+
+    private FEntry lockEntry(String fileName, boolean exclusive, boolean directoryAllowed) throws Exception {
+        while (true) {
+            FEntry target;
+            int generation;
+            long acquired = lockNamespace(false);
+            try {
+                target = findEntry(fileName);
+                if (target == null) {
+                    throw new Exception("ERROR: file " + fileName + " does not exist");
+                }
+                if (target.isDirectory() && !directoryAllowed) {
+                    throw new Exception("ERROR: " + fileName + " is a directory");
+                }
+                generation = target.getGeneration();
+            } finally {
+                unlockNamespace(false, acquired);
+            }
+
+            Lock lock = exclusive ? target.getLock().writeLock() : target.getLock().readLock();
+            long start = System.nanoTime();
+            lock.lock();
+            fileLockWait.record(System.nanoTime() - start);
+            if (target.getGeneration() == generation) {
+                return target;
+            }
+            lock.unlock();
+        }
+    }
+
+    // Takes rwLock and records how long that took, returns when it was acquired for unlockNamespace
+    private long lockNamespace(boolean write) {
+        long start = System.nanoTime();
+        if (write) {
+            rwLock.writeLock().lock();
+        } else {
+            rwLock.readLock().lock();
+        }
+        long acquired = System.nanoTime();
+        (write ? namespaceWriteWait : namespaceReadWait).record(acquired - start);
+        return acquired;
+    }
+
+    private void unlockNamespace(boolean write, long acquired) {
+        long held = System.nanoTime() - acquired;
+        if (write) {
+            rwLock.writeLock().unlock();
+        } else {
+            rwLock.readLock().unlock();
+        }
+        (write ? namespaceWriteHold : namespaceReadHold).record(held);
+    }
+
+    // Values read only when a report is made. Fragmentation is the share of free blocks outside the largest free run;
+    // fs.files.fragmented counts files stored in more than one run, fs.extents.used the runs of all files together.
+    private void registerGauges() {
+        metrics.gauge("fs.blocks.total", () -> totalBlocks);
+        metrics.gauge("fs.blocks.free", this::getFreeBlockCount);
+        metrics.gauge("fs.extents.free", () -> {
+            synchronized (allocLock) {
+                return allocator.freeExtentCount();
+            }
+        });
+        metrics.gauge("fs.extents.largest", () -> {
+            synchronized (allocLock) {
+                return allocator.largestFreeExtent();
+            }
+        });
+        metrics.gauge("fs.fragmentation.pct", () -> {
+            synchronized (allocLock) {
+                return freeFragmentationPct();
+            }
+        });
+        metrics.gauge("fs.blocks.scrub.pending", () -> {
+            synchronized (allocLock) {
+                return scrubPending + scrubbing;
+            }
+        });
+        metrics.gauge("fs.files.fragmented", () -> countExtents(true));
+        metrics.gauge("fs.extents.used", () -> countExtents(false));
+        metrics.gauge("fs.files", () -> {
+            rwLock.readLock().lock();
+            try {
+                return maxFiles - freeEntryCount;
+            } finally {
+                rwLock.readLock().unlock();
+            }
+        });
+        metrics.gauge("fs.bytes.logical", () -> byteTotals()[0]);
+        metrics.gauge("fs.bytes.stored", () -> byteTotals()[1]);
+        metrics.gauge("fs.bytes.unique", () -> byteTotals()[2]);
+        metrics.gauge("fs.compress.ratio.pct", () -> {
+            long[] totals = byteTotals();
+            return totals[1] == 0 ? 100 : 100 * totals[0] / totals[1];
+        });
+        metrics.gauge("fs.dedup.ratio.pct", () -> {
+            long[] totals = byteTotals();
+            return totals[2] == 0 ? 100 : 100 * totals[1] / totals[2];
+        });
+        metrics.gauge("fs.cache.hits", cache::getHits);
+        metrics.gauge("fs.cache.misses", cache::getMisses);
+        metrics.gauge("fs.cache.evictions", cache::getEvictions);
+        metrics.gauge("fs.cache.bytes", cache::getSizeBytes);
+    }
+
+    // Files in more than one run, or with fragmentedOnly false all runs of all files. Extents are read without the file
+    // locks, a report may be off by a concurrent write.
+    private long countExtents(boolean fragmentedOnly) {
+        long count = 0;
+        long acquired = lockNamespace(false);
+        try {
+            for (FEntry e : fEntry) {
+                int runs = e.getExtents().length / 2;
+                count += fragmentedOnly ? (runs > 1 ? 1 : 0) : runs;
+            }
+        } finally {
+            unlockNamespace(false, acquired);
+        }
+        return count;
+    }
+
+    // Bytes of all files as read, as stored (after compression), and as stored with each shared chain counted once.
+    // Read without the file locks like countExtents().
+    private long[] byteTotals() {
+        Set<Integer> shared;
+        synchronized (allocLock) {
+            shared = new HashSet<>(chainOwners.keySet());
+        }
+        Set<Integer> counted = new HashSet<>();
+        long[] totals = new long[3];
+        long acquired = lockNamespace(false);
+        try {
+            for (FEntry e : fEntry) {
+                if (!e.isUsed()) continue;
+                totals[0] += e.getFilesize();
+                totals[1] += e.getStoredSize();
+                if (!shared.contains(e.getFirstBlock()) || counted.add(e.getFirstBlock())) {
+                    totals[2] += e.getStoredSize();
+                }
+            }
+        } finally {
+            unlockNamespace(false, acquired);
+        }
+        return totals;
+    }
+
+    private int wholeLength(FEntry target) throws Exception {//caller holds the entry lock
+        if (target.getFilesize() > Integer.MAX_VALUE - 8) {
+            throw new Exception("ERROR: file " + target.getFilename() + " is too large to read at once");
+        }
+        return (int) target.getFilesize();
+    }
+
+    // Reads the whole file to data[at...]
+    private void readWhole(FEntry target, byte[] data, int at) throws IOException {//caller holds the entry lock
+        readContents(target, data, at);
+        bytesRead.add(target.getFilesize());
+    }
+
+    private void readContents(FEntry target, byte[] data, int at) throws IOException {//caller holds the entry lock
+        if (target.isCompressed()) {
+            byte[] packed = new byte[(int) target.getStoredSize()];
+            readStored(target.getExtents(), packed, 0, packed.length);
+            Lz4.decompress(packed, 0, packed.length, data, at, (int) target.getFilesize());
+        } else {
+            readStored(target.getExtents(), data, at, (int) target.getFilesize());
+        }
+    }
+
+    // Reads the first length bytes of a chain to data[at...], through the cache unless that is too much to be worth caching
+    private void readStored(int[] extents, byte[] data, int at, int length) throws IOException {
+        boolean cacheable = length <= cache.maxCachedRead();//a big file would only push everything else out
+        int offset = 0;
+        for (int e = 0; e < extents.length && offset < length; e += 2) {//one read per contiguous run
+            int chunk = (int) Math.min((long) extents[e + 1] * blockSize, length - offset);
+            if (cacheable) {
+                readCached(extents[e], data, at + offset, chunk);
+            } else {
+                device.read(blockOffset(extents[e]), data, at + offset, chunk);//jump to correct memory location
+            }
+            offset += chunk;
+        }
+    }
+
+    private static int rangeLength(FEntry target, long offset, int length) {
+        return (int) Math.max(0, Math.min(length, target.getFilesize() - offset));
+    }
+
+    private void readRange(FEntry target, long offset, byte[] data, int at, int length) throws IOException {
+        if (target.isCompressed()) {//expanded whole, compressed files were written from memory so they fit in it
+            if (length > 0) {
+                byte[] plain = new byte[(int) target.getFilesize()];
+                readContents(target, plain, 0);
+                System.arraycopy(plain, (int) offset, data, at, length);
+            }
+            bytesRead.add(length);
+            return;
+        }
+        forEachRange(target.getExtents(), offset, length, (extentStart, pos, rel, count) -> device.read(pos, data, at + rel, count));
+        bytesRead.add(length);
+    }
+
+    // Slots of all non-empty files, lowest first block first, so files are packed from the start of the volume
+    private int[] compactionOrder() {
+        long[] keys = new long[maxFiles];
+        int n = 0;
+        long acquired = lockNamespace(false);
+        try {
+            for (FEntry e : fEntry) {
+                if (e.isUsed() && e.getFirstBlock() >= 0) {
+                    keys[n++] = ((long) e.getFirstBlock() << 32) | e.getIndex();
+                }
+            }
+        } finally {
+            unlockNamespace(false, acquired);
+        }
+        Arrays.sort(keys, 0, n);
+        int[] slots = new int[n];
+        for (int i = 0; i < n; i++) {
+            slots[i] = (int) keys[i];
+        }
+        return slots;
+    }
+
+    // Moves the file to a lower free run if that makes it contiguous (or, with pack, just lower). Returns true if it moved.
+    private boolean moveFile(FEntry target, boolean pack) throws IOException {//caller holds compactLock
+        int generation;
+        int version;
+        int[] oldExtents;
+        long size;
+        target.getLock().readLock().lock();
+        try {
+            if (!target.isUsed()) return false;
+            generation = target.getGeneration();
+            version = target.getVersion();
+            oldExtents = target.getExtents();
+            size = target.getStoredSize();
+        } finally {
+            target.getLock().readLock().unlock();
+        }
+        int blocks = (int) ((size + blockSize - 1) / blockSize);
+        boolean fragmented = oldExtents.length > 2;
+        if (blocks == 0 || (!fragmented && !pack)) return false;
+
+        int[] newExtents;
+        synchronized (allocLock) {
+            if (isShared(oldExtents)) return false;//would have to move every owner at once
+            int start = allocator.lowestFit(blocks, fragmented ? totalBlocks : oldExtents[0]);
+            if (start < 0) return false;
+            newExtents = allocateExtents(blocks, start);
+        }
+        boolean done = false;
+        try {
+            if (!copyForMove(target, generation, version, oldExtents, size, newExtents[0])) {
+                compactVoided.increment();
+                return false;
+            }
+            target.getLock().writeLock().lock();
+            long held = System.nanoTime();
+            try {
+                if (target.getGeneration() != generation || target.getVersion() != version) {
+                    compactVoided.increment();
+                    return false;
+                }
+                synchronized (allocLock) {
+                    if (isShared(oldExtents)) {//another file took a share of it meanwhile
+                        compactVoided.increment();
+                        return false;
+                    }
+                    forgetContent(oldExtents);
+                }
+                target.setExtents(newExtents);
+                target.setFirstBlock(newExtents[0]);
+                markEntryDirty(target);
+                done = true;
+            } finally {
+                target.getLock().writeLock().unlock();
+                compactPause.record(System.nanoTime() - held);
+            }
+            //the commit waits outside the lock: readers already use the new blocks, and the old ones are only
+            //handed out again once the metadata pointing away from them is on disk
+            commitMetadata();
+            releaseAfterCommit(oldExtents);
+        } finally {
+            if (!done) {
+                synchronized (allocLock) {
+                    freeExtents(newExtents);
+                }
+            }
+        }
+        compactMoved.increment();
+        compactBytes.add(size);
+        return true;
+    }
+
+    // Copies size bytes of the file from oldExtents to the blocks from newStart on, one chunk per read lock hold. The
+    // chunk grows or shrinks so a hold stays within the budget, and the pass sleeps between chunks to keep to its duty
+    // cycle. Returns false if the file was written or deleted meanwhile.
+    private boolean copyForMove(FEntry target, int generation, int version, int[] oldExtents, long size, int newStart)
+            throws IOException {
+        if (compactBuffer == null) {
+            compactBuffer = new byte[COMPACT_MAX_CHUNK];
+        }
+        byte[] buf = compactBuffer;
+        int chunk = Math.max(blockSize, 64 * 1024);
+        long done = 0;
+        while (done < size) {
+            if (compactStopped) return false;
+            int n = (int) Math.min(chunk, size - done);
+            long held;
+            target.getLock().readLock().lock();
+            long start = System.nanoTime();
+            try {
+                if (target.getGeneration() != generation || target.getVersion() != version) return false;
+                forEachRange(oldExtents, done, n, (extentStart, pos, at, count) -> device.read(pos, buf, at, count));
+                device.write(blockOffset(newStart) + done, buf, 0, n);
+            } finally {
+                target.getLock().readLock().unlock();
+                held = System.nanoTime() - start;
+                compactPause.record(held);
+            }
+            done += n;
+            long budget = compactBudgetNanos;
+            if (held > budget && chunk > blockSize) {
+                chunk = Math.max(blockSize, chunk / 2);
+            } else if (held < budget / 2 && chunk < buf.length) {
+                chunk = Math.min(buf.length, chunk * 2);
+            }
+            long rest = held * (100 - COMPACT_DUTY_PERCENT) / COMPACT_DUTY_PERCENT;
+            LockSupport.parkNanos(rest);//leaves the disk to the foreground most of the time
+        }
+        return true;
+    }
+
+    private long freeFragmentationPct() {//caller holds allocLock
+        int free = freeBlockList.freeCount();
+        return free == 0 ? 0 : 100L * (free - allocator.largestFreeExtent()) / free;
+    }
+
+    private interface RangeAction {
+        void apply(int extentStart, long pos, int at, int count) throws IOException;
+    }
+
+    // Calls action for each contiguous piece of the file range [offset, offset + length): the extent it lies in,
+    // its device position, and its position relative to offset
+    private void forEachRange(int[] extents, long offset, long length, RangeAction action) throws IOException {
+        long extentFileStart = 0;
+        long done = 0;
+        for (int e = 0; e < extents.length && done < length; e += 2) {
+            long extentBytes = (long) extents[e + 1] * blockSize;
+            long from = offset + done;
+            if (from < extentFileStart + extentBytes) {
+                long within = from - extentFileStart;
+                int count = (int) Math.min(Math.min(extentBytes - within, length - done), Integer.MAX_VALUE & ~(blockSize - 1));
+                action.apply(extents[e], blockOffset(extents[e]) + within, (int) done, count);
+                done += count;
+                if (done < length && within + count < extentBytes) {
+                    e -= 2;//piece was capped, continue in the same extent
+                    continue;
+                }
+            }
+            extentFileStart += extentBytes;
+        }
+    }
+
+    // Appends the runs of b to a, joining the last run of a with the first of b when they touch
+    private static int[] concatExtents(int[] a, int[] b) {
+        if (b.length == 0) return a;
+        if (a.length == 0) return b;
+        boolean touch = a[a.length - 2] + a[a.length - 1] == b[0];
+        int[] out = Arrays.copyOf(a, a.length + b.length - (touch ? 2 : 0));
+        if (touch) {
+            out[a.length - 1] += b[1];
+            System.arraycopy(b, 2, out, a.length, b.length - 2);
+        } else {
+            System.arraycopy(b, 0, out, a.length, b.length);
+        }
+        return out;
+    }
+
+    // Drops the cached chunks covering byteCount bytes at byte within of the extent starting at extentStart
+    private void invalidateCached(int extentStart, long within, int byteCount) {
+        int chunkBlocks = Math.max(1, CACHE_CHUNK_SIZE / blockSize);
+        long fromBlock = within / blockSize;
+        long toBlock = (within + byteCount + blockSize - 1) / blockSize;
+        for (long c = fromBlock / chunkBlocks * chunkBlocks; c < toBlock; c += chunkBlocks) {
+            cache.invalidate(extentStart + (int) c);
+        }
+    }
+
+    // Allocates blocksNeeded blocks as contiguous runs and links them into one fNode chain
+    private int[] allocateExtents(int blocksNeeded, int hint) {//caller holds allocLock and has checked the free count
+        int[] extents = allocator.allocate(blocksNeeded, hint);
+        int prevBlock = -1;//no previous block
+        for (int e = 0; e < extents.length; e += 2) {
+            for (int i = extents[e]; i < extents[e] + extents[e + 1]; i++) {
+                fNode[i].setBlockIndex(i);
+                fNode[i].setNext(-1);
+                if (prevBlock != -1) {//if not first block
+                    fNode[prevBlock].setNext(i);//link previous block to current
+                }
+                prevBlock = i;
+            }
+            markNodesDirty(extents[e], extents[e + 1]);
+        }
+        return extents;
+    }
+
+    // Fills data[offset, offset + length) from the extent starting at firstBlock. The cache holds the extent in chunks
+    // of CACHE_CHUNK_SIZE bytes keyed by their first block; cached chunks are copied and each run of missing chunks is
+    // read with one device read, then cached. Caller holds the entry lock.
+    private void readCached(int firstBlock, byte[] data, int offset, int length) throws IOException {
+        int chunkBlocks = Math.max(1, CACHE_CHUNK_SIZE / blockSize);
+        int chunkBytes = chunkBlocks * blockSize;
+        int chunks = (int) (((long) length + chunkBytes - 1) / chunkBytes);
+        int missStart = -1;
+        for (int c = 0; c <= chunks; c++) {
+            int at = offset + c * chunkBytes;
+            byte[] cached = null;
+            if (c < chunks) {
+                cached = cache.get(firstBlock + c * chunkBlocks);
+                if (cached != null && cached.length != Math.min(chunkBytes, offset + length - at)) {
+                    cached = null;//cached while the file had another size
+                }
+                if (cached == null) {
+                    if (missStart < 0) missStart = c;
+                    continue;
+                }
+            }
+            if (missStart >= 0) {
+                int from = offset + missStart * chunkBytes;
+                int to = Math.min(at, offset + length);
+                device.read(blockOffset(firstBlock + missStart * chunkBlocks), data, from, to - from);
+                for (int pos = from, b = firstBlock + missStart * chunkBlocks; pos < to; pos += chunkBytes, b += chunkBlocks) {
+                    cache.put(b, Arrays.copyOfRange(data, pos, Math.min(pos + chunkBytes, to)));
+                }
+                missStart = -1;
+            }
+            if (cached != null) {
+                System.arraycopy(cached, 0, data, at, cached.length);
+            }
+        }
+    }
+
+    // Cached data only goes stale by being freed, rewrites always land on freshly allocated blocks. Extents are freed
+    // exactly as the file was read, so the cache keys are the chunk starts of each extent.
+    private void freeExtents(int[] extents) {//caller holds allocLock
+        unlinkExtents(extents);
+        for (int e = 0; e < extents.length; e += 2) {
+            allocator.free(extents[e], extents[e + 1]);
+        }
+    }
+
+    // Marks the blocks unused in the node table and drops them from the cache, but leaves them taken in the bitmap
+    private void unlinkExtents(int[] extents) {//caller holds allocLock
+        int chunkBlocks = Math.max(1, CACHE_CHUNK_SIZE / blockSize);
+        for (int e = 0; e < extents.length; e += 2) {
+            for (int b = extents[e]; b < extents[e] + extents[e + 1]; b += chunkBlocks) {
+                cache.invalidate(b);
+            }
+            for (int i = extents[e]; i < extents[e] + extents[e + 1]; i++) {
+                fNode[i].setBlockIndex(-Math.abs(i));
+                fNode[i].setNext(-1);//unlinks next block
+            }
+            markNodesDirty(extents[e], extents[e + 1]);
+        }
+    }
+
+    // Hands unlinked blocks to the reclaimer once the metadata that dropped them is committed, see releaseAfterCommit()
+    private void scrubAfterCommit(int[] extents) {
+        Batch batch = currentBatch.get();
+        if (batch != null) {
+            batch.deferredScrubs.add(extents);
+            return;
+        }
+        synchronized (allocLock) {
+            queueScrub(extents);
+        }
+    }
+
+    private void queueScrub(int[] extents) {//caller holds allocLock
+        for (int e = 0; e < extents.length; e += 2) {
+            if (scrubDeleted && !scrubStopped) {
+                scrubQueue.add(new int[]{extents[e], extents[e + 1]});
+                scrubPending += extents[e + 1];
+            } else {
+                allocator.free(extents[e], extents[e + 1]);
+            }
+        }
+        if (scrubPending > 0 && reclaimer == null) {
+            reclaimer = new Thread(this::reclaimLoop, "block-reclaimer");
+            reclaimer.setDaemon(true);
+            reclaimer.start();
+        }
+        allocLock.notifyAll();
+    }
+
+    // Free blocks for an allocation of count blocks. If the bitmap has too few, blocks waiting to be zeroed are handed
+    // back to the allocator as they are, and a chunk the reclaimer is zeroing is waited for.
+    private int freeBlocksFor(long count) {//caller holds allocLock
+        while (freeBlockList.freeCount() < count && (scrubPending > 0 || scrubbing > 0)) {
+            int[] run = scrubQueue.pollLast();
+            if (run != null) {
+                allocator.free(run[0], run[1]);
+                scrubPending -= run[1];
+                unscrubbedBlocks.add(run[1]);
+                continue;
+            }
+            try {
+                allocLock.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return freeBlockList.freeCount();
+    }
+
+    // Writes a fresh superblock and empty tables
+    private void format() throws IOException {
+        writeSuperblock();
+        synchronized (dirtyLock) {
+            dirtyEntries.set(0, maxFiles);
+            dirtyNodes.set(0, totalBlocks);
+        }
+        flushInPlace();
+    }
+
+    private void writeSuperblock() throws IOException {
+        ByteBuffer sb = ByteBuffer.allocate(Superblock.SIZE);
+        new Superblock(blockSize, totalBlocks, maxFiles, metadataBlocks, volumeId).writeTo(sb);
+        device.write(0, sb.array(), 0, Superblock.SIZE);
+    }
+
+    private static Superblock readSuperblock(BlockDevice device) throws IOException {
+        if (device.size() < Superblock.SIZE) return null;
+        byte[] raw = new byte[Superblock.SIZE];
+        device.read(0, raw, 0, raw.length);
+        return Superblock.readFrom(ByteBuffer.wrap(raw));
+    }
+
+    // Loads both tables with one bulk read, rebuilds the bitmap and each file's extents, and checks every chain.
+    // A file whose chain is broken or whose directory is missing is dropped and blocks no file owns are freed; both are
+    // reported and written back.
+    private void mount() throws IOException {
+        long start = System.nanoTime();
+        long tableBytes = nodeTableOffset + (long) totalBlocks * FNode.DISK_SIZE - entryTableOffset;
+        if (tableBytes > Integer.MAX_VALUE - 8) {
+            throw new IOException("Metadata region of " + tableBytes + " bytes is too large to mount");
+        }
+        byte[] raw = new byte[(int) tableBytes];
+        device.read(entryTableOffset, raw, 0, raw.length);
+        ByteBuffer buf = ByteBuffer.wrap(raw);
+        for (FEntry entry : fEntry) {
+            entry.readFrom(buf);
+        }
+        for (FNode node : fNode) {
+            node.readFrom(buf);
+        }
+
+        for (int i = 0; i < metadataBlocks; i++) {
+            freeBlockList.setUsed(i);
+            if (fNode[i].getBlockIndex() != i) {
+                fNode[i].setBlockIndex(i);
+                markNodesDirty(i, 1);
+            }
+        }
+        NameIndex seen = new NameIndex(maxFiles);
+        String[] paths = new String[maxFiles];//of the entries kept
+        HashMap<Integer, FEntry> chains = new HashMap<>();//first block -> the kept file that claimed the chain
+        int files = 0;
+        for (int slot : treeOrder()) {
+            FEntry entry = fEntry[slot];
+            int parent = entry.getParent();
+            if (parent >= 0 && paths[parent] == null) continue;//its directory was dropped, dropped below
+            String path = parent < 0 ? entry.getFilename() : paths[parent] + "/" + entry.getFilename();
+            FEntry sharer = chains.get(entry.getFirstBlock());//a deduplicated file, same chain as sharer
+            String problem;
+            if (seen.get(path) >= 0) {
+                problem = "duplicate name";
+            } else if (entry.isDirectory()) {
+                problem = entry.getFirstBlock() != -1 || entry.getFilesize() != 0 ? "directory holds data" : null;
+            } else if (sharer != null) {
+                problem = sharer.getStoredSize() != entry.getStoredSize() ? "block " + entry.getFirstBlock() + " already in use" : null;
+            } else {
+                problem = claimChain(entry);
+            }
+            if (problem != null) {
+                dropEntry(entry, path, problem);
+                continue;
+            }
+            seen.put(path, slot);
+            paths[slot] = path;
+            if (sharer != null) {
+                entry.setExtents(sharer.getExtents());
+                chainOwners.merge(entry.getFirstBlock(), 2, (owners, one) -> owners + 1);
+            } else {
+                entry.setExtents(extentsOf(entry.getFirstBlock()));
+                if (entry.getFirstBlock() >= 0) chains.put(entry.getFirstBlock(), entry);
+            }
+            files++;
+        }
+        for (FEntry entry : fEntry) {
+            if (entry.isUsed() && paths[entry.getIndex()] == null) {
+                dropEntry(entry, entry.getFilename(), "its directory is missing");
+            }
+        }
+
+        int leaked = 0;
+        for (int i = metadataBlocks; i < totalBlocks; i++) {
+            if (fNode[i].isUsed() && freeBlockList.isFree(i)) {//marked used on disk but no file reaches it
+                fNode[i].setBlockIndex(-i);
+                fNode[i].setNext(-1);
+                markNodesDirty(i, 1);
+                leaked++;
+            } else if (!fNode[i].isUsed() && fNode[i].getNext() != -1) {
+                fNode[i].setNext(-1);
+                markNodesDirty(i, 1);
+            }
+        }
+        if (leaked > 0) {
+            System.err.println("Mount: reclaimed " + leaked + " unreferenced blocks");
+        }
+        System.out.println("Mounted " + files + " files, " + freeBlockList.freeCount() + " free blocks in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    // Clears a slot mount() cannot keep, its blocks are left to the leak check
+    private void dropEntry(FEntry entry, String path, String problem) {
+        System.err.println("Mount: dropping file " + path + ": " + problem);
+        entry.setFilename("");
+        entry.setFilesize(0);
+        entry.setFirstBlock(-1);
+        entry.setCompressedSize(0);
+        entry.setParent(-1);
+        entry.setDirectory(false);
+        entry.setExtents(new int[0]);
+        markEntryDirty(entry);
+    }
+
+    // Marks the blocks of entry's chain as used in the bitmap. Returns why the chain is invalid, or null.
+    // On failure the blocks claimed so far are released again.
+    private String claimChain(FEntry entry) {
+        long expected = (entry.getStoredSize() + blockSize - 1) / blockSize;
+        String problem = null;
+        long count = 0;
+        int block = entry.getFirstBlock();
+        while (block != -1) {
+            if (block < metadataBlocks || block >= totalBlocks) {
+                problem = "block " + block + " out of range";
+                break;
+            }
+            if (!freeBlockList.isFree(block)) {
+                problem = "block " + block + " already in use (shared or cyclic chain)";
+                break;
+            }
+            if (fNode[block].getBlockIndex() != block) {
+                problem = "block " + block + " is not marked as used";
+                break;
+            }
+            if (count == expected) {
+                problem = "chain is longer than the " + expected + " blocks its size needs";
+                break;
+            }
+            freeBlockList.setUsed(block);
+            count++;
+            block = fNode[block].getNext();
+        }
+        if (problem == null && count != expected) {
+            problem = "chain holds " + count + " blocks, size needs " + expected;
+        }
+        if (problem != null) {
+            for (int b = entry.getFirstBlock(); count-- > 0 && b >= metadataBlocks && b < totalBlocks; b = fNode[b].getNext()) {
+                freeBlockList.setFree(b);//undo, these blocks are reclaimed as leaked below
+            }
+        }
+        return problem;
+    }
+
+    // Collapses an fNode chain into {start, length} runs of consecutive blocks
+    private int[] extentsOf(int block) {
+        int[] runs = new int[8];
+        int n = 0;
+        while (block != -1) {
+            if (n > 0 && runs[n - 2] + runs[n - 1] == block) {
+                runs[n - 1]++;//continues the current run
+            } else {
+                if (n + 2 > runs.length) runs = Arrays.copyOf(runs, runs.length * 2);
+                runs[n++] = block;
+                runs[n++] = 1;
+            }
+            block = fNode[block].getNext();
+        }
+        return Arrays.copyOf(runs, n);
+    }
+
+    private void markEntryDirty(FEntry entry) {
+        synchronized (dirtyLock) {
+            dirtyEntries.set(entry.getIndex());
+        }
+    }
+
+    private void markNodesDirty(int start, int length) {
+        synchronized (dirtyLock) {
+            dirtyNodes.set(start, start + length);
+        }
+    }
+
+    // Called after every mutation: writes the dirty slots now unless flushing is deferred or a batch is running
+    private void commitMetadata() throws IOException {
+        if (flushIntervalMillis == 0 && currentBatch.get() == null) {
+            flushMetadata();
+        }
+    }
+
+    // Frees blocks that committed metadata no longer points to. Inside a batch the commit is still pending, so they
+    // are kept until it is done; otherwise another writer could overwrite them while the old metadata is what is on disk.
+    private void releaseAfterCommit(int[] extents) {
+        Batch batch = currentBatch.get();
+        if (batch != null) {
+            batch.deferredFrees.add(extents);
+            return;
+        }
+        synchronized (allocLock) {//goes out with the next commit, a crash before that leaves blocks mount() reclaims
+            freeExtents(extents);
+        }
+    }
+
+    // Copies the images of all dirty slots into batchBuffer as runs of at most METADATA_IO_SIZE bytes, after the space
+    // reserved for a journal record header. Returns the payload length, 0 when nothing was dirty. Caller holds flushLock.
+    private int collectBatch(BitSet entries, BitSet nodes) {
+        int pos = Journal.RECORD_HEADER_SIZE;
+        int perRun = METADATA_IO_SIZE / FEntry.DISK_SIZE;
+        for (int start = entries.nextSetBit(0); start >= 0; start = entries.nextSetBit(start)) {
+            int end = Math.min(entries.nextClearBit(start), start + perRun);
+            ByteBuffer buf = batchSpace(pos, RUN_HEADER_SIZE + (end - start) * FEntry.DISK_SIZE);
+            buf.put(RUN_ENTRIES).putInt(start).putInt(end - start);
+            for (int i = start; i < end; i++) {
+                fEntry[i].writeTo(buf);
+            }
+            pos = buf.position();
+            start = end;
+        }
+        perRun = METADATA_IO_SIZE / FNode.DISK_SIZE;
+        for (int start = nodes.nextSetBit(0); start >= 0; start = nodes.nextSetBit(start)) {
+            int end = Math.min(nodes.nextClearBit(start), start + perRun);
+            ByteBuffer buf = batchSpace(pos, RUN_HEADER_SIZE + (end - start) * FNode.DISK_SIZE);
+            buf.put(RUN_NODES).putInt(start).putInt(end - start);
+            synchronized (allocLock) {//links of a run are copied out consistently
+                for (int i = start; i < end; i++) {
+                    fNode[i].writeTo(buf);
+                }
+            }
+            pos = buf.position();
+            start = end;
+        }
+        return pos - Journal.RECORD_HEADER_SIZE;
+    }
+
+    // A view of batchBuffer at pos with room for needed more bytes, growing the buffer if it is too small
+    private ByteBuffer batchSpace(int pos, int needed) {
+        if (pos + needed > batchBuffer.length) {
+            batchBuffer = Arrays.copyOf(batchBuffer, Math.max(batchBuffer.length * 2, pos + needed));
+        }
+        return ByteBuffer.wrap(batchBuffer, pos, batchBuffer.length - pos);
+    }
+
+    // Writes each run of slot images in buf[from, to) to its place in the tables. Used for batches and journal replay.
+    private void applyBatch(byte[] buf, int from, int to) throws IOException {
+        ByteBuffer b = ByteBuffer.wrap(buf, from, to - from);
+        while (b.hasRemaining()) {
+            byte kind = b.get();
+            int start = b.getInt();
+            int count = b.getInt();
+            boolean entries = kind == RUN_ENTRIES;
+            int slotSize = entries ? FEntry.DISK_SIZE : FNode.DISK_SIZE;
+            int slots = entries ? maxFiles : totalBlocks;
+            if ((kind != RUN_ENTRIES && kind != RUN_NODES) || start < 0 || count < 0 || start > slots - count
+                    || (long) count * slotSize > b.remaining()) {
+                throw new IOException("Corrupt metadata batch at byte " + (b.position() - RUN_HEADER_SIZE));
+            }
+            long home = (entries ? entryTableOffset : nodeTableOffset) + (long) start * slotSize;
+            device.write(home, buf, b.position(), count * slotSize);
+            b.position(b.position() + count * slotSize);
+        }
+    }
+
+    // Swaps in the empty spare sets so mutators keep marking while a batch is written. Caller holds flushLock.
+    private void swapDirtySets() {
+        synchronized (dirtyLock) {
+            BitSet entries = dirtyEntries;
+            BitSet nodes = dirtyNodes;
+            dirtyEntries = spareEntries;
+            dirtyNodes = spareNodes;
+            spareEntries = entries;
+            spareNodes = nodes;
+        }
+    }
+
+    private void flushInPlace() throws IOException {
+        synchronized (flushLock) {
+            swapDirtySets();
+            int length = collectBatch(spareEntries, spareNodes);
+            spareEntries.clear();
+            spareNodes.clear();
+            applyBatch(batchBuffer, Journal.RECORD_HEADER_SIZE, Journal.RECORD_HEADER_SIZE + length);
+            trimBatchBuffer();
+        }
+    }
+
+    // Logs one batch and then writes it in place. The in-place writes are forced by the next batch, before any
+    // journal reset can drop the record that covers them.
+    private void commitBatch() throws IOException {
+        synchronized (flushLock) {
+            swapDirtySets();
+            try {
+                int length = collectBatch(spareEntries, spareNodes);
+                if (length == 0) return;
+                device.force();//file data and earlier in-place writes reach the disk before the record that points at them
+                if (length > journal.capacity()) {
+                    System.err.println("Journal: batch of " + length + " bytes exceeds the log, writing it unlogged");
+                    journal.reset(volumeId);//checkpoint first, or replaying older records after a crash would roll this batch back
+                    applyBatch(batchBuffer, Journal.RECORD_HEADER_SIZE, Journal.RECORD_HEADER_SIZE + length);
+                    device.force();
+                } else {
+                    if (!journal.fits(length)) {
+                        journal.reset(volumeId);//checkpoint, the force above made every logged change durable in place
+                    }
+                    journal.append(batchBuffer, length);
+                    applyBatch(batchBuffer, Journal.RECORD_HEADER_SIZE, Journal.RECORD_HEADER_SIZE + length);
+                }
+            } catch (IOException e) {
+                synchronized (dirtyLock) {//not durable, the next batch tries again
+                    dirtyEntries.or(spareEntries);
+                    dirtyNodes.or(spareNodes);
+                }
+                throw e;
+            } finally {
+                spareEntries.clear();
+                spareNodes.clear();
+                trimBatchBuffer();
+            }
+        }
+    }
+
+    private void trimBatchBuffer() {//a format or a huge file can grow it a lot, do not keep that around
+        if (batchBuffer.length > 16 * METADATA_IO_SIZE) {
+            batchBuffer = new byte[METADATA_IO_SIZE];
+        }
+    }
+
+    private void replayJournal() throws IOException {
+        List<byte[]> records = journal.recover(volumeId);
+        for (byte[] payload : records) {
+            applyBatch(payload, 0, payload.length);
+        }
+        if (!records.isEmpty()) {
+            device.force();
+            System.out.println("Journal: replayed " + records.size() + " records");
+        }
+    }
+
+    // Returns the number of a batch that has not started collecting yet, so it will include every change made so far
+    private long requestCommit() {
+        synchronized (commitLock) {
+            long ticket = startedBatch + 1;
+            if (requestedBatch < ticket) {
+                requestedBatch = ticket;
+                commitLock.notifyAll();
+            }
+            return ticket;
+        }
+    }
+
+    private void awaitCommit(long ticket) throws IOException {
+        synchronized (commitLock) {
+            while (durableBatch < ticket) {
+                if (failedBatch >= ticket) {
+                    throw new IOException("Journal commit failed: " + commitError.getMessage(), commitError);
+                }
+                try {
+                    commitLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the journal");
+                }
+            }
+        }
+    }
+
+    private void commitLoop() {
+        while (true) {
+            long batch;
+            synchronized (commitLock) {
+                while (requestedBatch <= startedBatch && !closing) {
+                    try {
+                        commitLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (requestedBatch <= startedBatch) {
+                    return;//closing and nobody waiting
+                }
+                batch = ++startedBatch;
+            }
+            try {
+                long start = System.nanoTime();
+                commitBatch();
+                journalCommit.record(System.nanoTime() - start);
+                synchronized (commitLock) {
+                    durableBatch = batch;
+                    commitLock.notifyAll();
+                }
+            } catch (IOException e) {
+                ioErrors.increment();
+                System.err.println("Journal commit failed: " + e.getMessage());
+                synchronized (commitLock) {
+                    failedBatch = batch;
+                    commitError = e;
+                    commitLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    // Not stopped by interrupt: an interrupt during FileChannel I/O would close the channel
+    private void flushLoop() {
+        while (true) {
+            synchronized (this) {
+                try {
+                    if (flushIntervalMillis > 0) {
+                        wait(flushIntervalMillis);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (flushIntervalMillis == 0) {
+                    return;//close() or the setter flushes whatever is left
+                }
+            }
+            try {
+                flushMetadata();
+            } catch (IOException e) {
+                ioErrors.increment();
+                System.err.println("Metadata flush failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void compactLoop() {
+        while (true) {
+            synchronized (this) {
+                long due = System.nanoTime() + compactIntervalMillis * 1_000_000;
+                long left;
+                while (compactIntervalMillis > 0 && (left = due - System.nanoTime()) > 0) {
+                    try {
+                        wait(left / 1_000_000 + 1);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (compactIntervalMillis == 0) {
+                    return;
+                }
+            }
+            try {
+                compact();
+            } catch (IOException e) {
+                ioErrors.increment();
+                System.err.println("Compaction failed: " + e.getMessage());
+            }
+        }
+    }
+
+    // Zeroes queued runs a chunk at a time and frees each chunk when it is done
+    private void reclaimLoop() {
+        byte[] zeros = new byte[Math.max(blockSize, SCRUB_CHUNK_SIZE)];
+        int chunkBlocks = zeros.length / blockSize;
+        while (true) {
+            int start;
+            int count;
+            synchronized (allocLock) {
+                while (scrubQueue.isEmpty() && !scrubStopped) {
+                    try {
+                        allocLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (scrubStopped) return;
+                int[] run = scrubQueue.peekFirst();
+                start = run[0];
+                count = Math.min(run[1], chunkBlocks);
+                if (count == run[1]) {
+                    scrubQueue.pollFirst();
+                } else {
+                    run[0] += count;
+                    run[1] -= count;
+                }
+                scrubPending -= count;
+                scrubbing = count;
+            }
+            try {
+                device.write(blockOffset(start), zeros, 0, count * blockSize);
+                scrubbedBlocks.add(count);
+            } catch (IOException e) {
+                ioErrors.increment();//the blocks are reused with their old bytes, nothing else is lost
+                System.err.println("Scrubbing blocks " + start + "+" + count + " failed: " + e.getMessage());
+            }
+            synchronized (allocLock) {
+                allocator.free(start, count);
+                scrubbing = 0;
+                allocLock.notifyAll();//writers short of space may be waiting for this chunk
+            }
+        }
+    }
+
+    // Lets the reclaimer finish its chunk and exit. Whatever is still queued is freed unscrubbed, it is free on disk.
+    private void stopReclaimer() {
+        Thread t;
+        synchronized (allocLock) {
+            scrubStopped = true;
+            allocLock.notifyAll();
+            t = reclaimer;
+        }
+        if (t != null) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (allocLock) {
+            for (int[] run; (run = scrubQueue.pollFirst()) != null; ) {
+                allocator.free(run[0], run[1]);
+            }
+            scrubPending = 0;
+        }
+    }
+
+    // Ends a running pass at its next chunk and waits for the background thread to exit
+    private void stopCompactor() {
+        Thread t;
+        synchronized (this) {
+            t = compactor;
+        }
+        compactStopped = true;
+        setCompaction(0, compactBudgetNanos / 1000);
+        if (t != null) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 
 }
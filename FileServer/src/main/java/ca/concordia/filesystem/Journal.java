@@ -0,0 +1,114 @@
+package ca.concordia.filesystem;
+
+import ca.concordia.filesystem.device.BlockDevice;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32C;
+
+// Redo log for metadata. A header names the volume and the current epoch, followed by records appended back to back.
+// A record is only replayed if its magic, epoch, sequence number and checksum all match, so a torn last record or
+// records left over from before the last reset are ignored. Not thread safe, FileSystemManager's committer owns it.
+class Journal {
+
+    static final int RECORD_HEADER_SIZE = 28;// magic(4) epoch(8) sequence(8) length(4) crc(4)
+
+    private static final int MAGIC = 0x4A524E4C; // "JRNL"
+    private static final int RECORD_MAGIC = 0x52454344; // "RECD"
+    private static final int HEADER_SIZE = 32;// magic(4) reserved(4) volumeId(8) epoch(8) reserved(8)
+
+    private final BlockDevice log;
+    private long volumeId;
+    private long epoch;
+    private long sequence;//of the last record written
+    private long tail = HEADER_SIZE;//where the next record goes
+
+    Journal(BlockDevice log) {
+        if (log.size() < HEADER_SIZE + RECORD_HEADER_SIZE + 4096) {
+            throw new IllegalArgumentException("Journal device is too small.");
+        }
+        this.log = log;
+    }
+
+    // Largest payload a single record can carry
+    long capacity() {
+        return log.size() - HEADER_SIZE - RECORD_HEADER_SIZE;
+    }
+
+    boolean fits(int payloadLength) {
+        return tail + RECORD_HEADER_SIZE + payloadLength <= log.size();
+    }
+
+    // Payloads of every intact record written for this volume since the last reset, oldest first
+    List<byte[]> recover(long volumeId) throws IOException {
+        List<byte[]> payloads = new ArrayList<>();
+        byte[] header = new byte[HEADER_SIZE];
+        log.read(0, header, 0, HEADER_SIZE);
+        ByteBuffer hb = ByteBuffer.wrap(header);
+        if (hb.getInt() != MAGIC) return payloads;
+        hb.getInt();
+        if (hb.getLong() != volumeId) return payloads;//log of some other volume
+        long logEpoch = hb.getLong();
+
+        long pos = HEADER_SIZE;
+        long expected = 1;
+        byte[] rh = new byte[RECORD_HEADER_SIZE];
+        CRC32C crc = new CRC32C();
+        while (pos + RECORD_HEADER_SIZE <= log.size()) {
+            log.read(pos, rh, 0, RECORD_HEADER_SIZE);
+            ByteBuffer b = ByteBuffer.wrap(rh);
+            if (b.getInt() != RECORD_MAGIC || b.getLong() != logEpoch || b.getLong() != expected) break;
+            int length = b.getInt();
+            int sum = b.getInt();
+            if (length < 0 || pos + RECORD_HEADER_SIZE + length > log.size()) break;
+            byte[] payload = new byte[length];
+            log.read(pos + RECORD_HEADER_SIZE, payload, 0, length);
+            crc.reset();
+            crc.update(payload);
+            if ((int) crc.getValue() != sum) break;//torn write, everything after it is garbage
+            payloads.add(payload);
+            pos += RECORD_HEADER_SIZE + length;
+            expected++;
+        }
+        return payloads;
+    }
+
+    // Starts an empty log. Callers must have made every earlier record's effect durable on the volume first.
+    void reset(long volumeId) throws IOException {
+        this.volumeId = volumeId;
+        long next;
+        do {
+            next = ThreadLocalRandom.current().nextLong();
+        } while (next == epoch);//a fresh epoch invalidates all old records without erasing them
+        epoch = next;
+        sequence = 0;
+        tail = HEADER_SIZE;
+        ByteBuffer hb = ByteBuffer.allocate(HEADER_SIZE);
+        hb.putInt(MAGIC).putInt(0).putLong(volumeId).putLong(epoch).putLong(0);
+        log.write(0, hb.array(), 0, HEADER_SIZE);
+        log.force();
+    }
+
+    // Appends one record and forces it. The first RECORD_HEADER_SIZE bytes of buf are reserved for the record
+    // header and the payload follows, so the record goes out with a single write and no copy.
+    void append(byte[] buf, int payloadLength) throws IOException {
+        if (!fits(payloadLength)) {
+            throw new IOException("Journal full");
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(buf, RECORD_HEADER_SIZE, payloadLength);
+        ByteBuffer b = ByteBuffer.wrap(buf, 0, RECORD_HEADER_SIZE);
+        b.putInt(RECORD_MAGIC).putLong(epoch).putLong(sequence + 1).putInt(payloadLength).putInt((int) crc.getValue());
+        log.write(tail, buf, 0, RECORD_HEADER_SIZE + payloadLength);
+        log.force();
+        sequence++;
+        tail += RECORD_HEADER_SIZE + payloadLength;
+    }
+
+    void close() throws IOException {
+        log.close();
+    }
+}
@@ -0,0 +1,140 @@
+package ca.concordia.filesystem;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+// LZ4 block format: sequences of token(1) [literal length bytes] literals offset(2, little-endian) [match length bytes].
+// The high half of the token is the literal count, the low half the match length minus 4; 15 means more length bytes
+// follow, each adding up to 255. The last sequence is literals only. Greedy single-probe matcher, no frames or checksums.
+final class Lz4 {
+
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;//a block ends with at least this many literals
+    private static final int MF_LIMIT = 12;//no match may start within this many bytes of the end
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_LOG = 12;
+
+    private Lz4() {
+    }
+
+    static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    static byte[] compress(byte[] src, int off, int len) {
+        byte[] dst = new byte[maxCompressedLength(len)];
+        int[] table = new int[1 << HASH_LOG];//position + 1 of the last 4 bytes with that hash, 0 = none
+        int end = off + len;
+        int matchLimit = end - LAST_LITERALS;
+        int mfLimit = end - MF_LIMIT;
+        int anchor = off;
+        int ip = off;
+        int op = 0;
+        while (ip < mfLimit) {
+            int seq = readInt(src, ip);
+            int h = (seq * -1640531535) >>> (32 - HASH_LOG);
+            int ref = table[h] - 1;
+            table[h] = ip + 1;
+            if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != seq) {
+                ip++;
+                continue;
+            }
+            while (ip > anchor && ref > off && src[ip - 1] == src[ref - 1]) {//the match may start earlier
+                ip--;
+                ref--;
+            }
+            int matchLen = MIN_MATCH;
+            while (ip + matchLen < matchLimit && src[ip + matchLen] == src[ref + matchLen]) {
+                matchLen++;
+            }
+            op = writeSequence(dst, op, src, anchor, ip - anchor, ip - ref, matchLen);
+            ip += matchLen;
+            anchor = ip;
+        }
+        op = writeSequence(dst, op, src, anchor, end - anchor, 0, 0);
+        return Arrays.copyOf(dst, op);
+    }
+
+    // Expands src[off, off + len) into exactly dstLen bytes at dst[dstOff...]
+    static void decompress(byte[] src, int off, int len, byte[] dst, int dstOff, int dstLen) throws IOException {
+        int ip = off;
+        int end = off + len;
+        int op = dstOff;
+        int dstEnd = dstOff + dstLen;
+        try {
+            while (ip < end) {
+                int token = src[ip++] & 0xFF;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        literals += b;
+                    } while (b == 255);
+                }
+                if (literals > end - ip || literals > dstEnd - op) throw corrupt();
+                System.arraycopy(src, ip, dst, op, literals);
+                ip += literals;
+                op += literals;
+                if (ip == end) break;//last sequence has no match
+
+                int offset = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+                ip += 2;
+                int matchLen = token & 15;
+                if (matchLen == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        matchLen += b;
+                    } while (b == 255);
+                }
+                matchLen += MIN_MATCH;
+                if (offset == 0 || offset > op - dstOff || matchLen > dstEnd - op) throw corrupt();
+                if (offset >= matchLen) {
+                    System.arraycopy(dst, op - offset, dst, op, matchLen);
+                } else {
+                    for (int i = 0; i < matchLen; i++) {//overlapping copy repeats the last offset bytes
+                        dst[op + i] = dst[op - offset + i];
+                    }
+                }
+                op += matchLen;
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw corrupt();
+        }
+        if (op != dstEnd) throw corrupt();
+    }
+
+    private static int writeSequence(byte[] dst, int op, byte[] src, int literalStart, int literals, int offset, int matchLen) {
+        int token = op++;
+        dst[token] = (byte) (Math.min(literals, 15) << 4);
+        op = writeLength(dst, op, literals);
+        System.arraycopy(src, literalStart, dst, op, literals);
+        op += literals;
+        if (matchLen == 0) return op;//last literals
+        dst[op++] = (byte) offset;
+        dst[op++] = (byte) (offset >>> 8);
+        int extra = matchLen - MIN_MATCH;
+        dst[token] |= (byte) Math.min(extra, 15);
+        return writeLength(dst, op, extra);
+    }
+
+    private static int writeLength(byte[] dst, int op, int length) {//the part of length the token nibble cannot hold
+        if (length < 15) return op;
+        length -= 15;
+        while (length >= 255) {
+            dst[op++] = (byte) 255;
+            length -= 255;
+        }
+        dst[op++] = (byte) length;
+        return op;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24;
+    }
+
+    private static IOException corrupt() {
+        return new IOException("ERROR: compressed data is corrupt");
+    }
+}
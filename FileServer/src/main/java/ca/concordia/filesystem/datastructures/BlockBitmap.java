@@ -0,0 +1,72 @@
+package ca.concordia.filesystem.datastructures;
+
+// Free-space bitmap packed 64 blocks per long, a set bit means the block is in use
+public class BlockBitmap {
+
+    private final long[] words;
+    private final int size;
+    private int freeCount;
+
+    public BlockBitmap(int size) {
+        this.size = size;
+        this.words = new long[(size + 63) >>> 6];
+        this.freeCount = size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int freeCount() {
+        return freeCount;
+    }
+
+    public boolean isFree(int block) {
+        return (words[block >>> 6] & (1L << block)) == 0;
+    }
+
+    public void setUsed(int block) {
+        long bit = 1L << block;//shift count is taken mod 64
+        if ((words[block >>> 6] & bit) == 0) {
+            words[block >>> 6] |= bit;
+            freeCount--;
+        }
+    }
+
+    public void setFree(int block) {
+        long bit = 1L << block;
+        if ((words[block >>> 6] & bit) != 0) {
+            words[block >>> 6] &= ~bit;
+            freeCount++;
+        }
+    }
+
+    // First free block at or after from, or -1. Skips 64 used blocks per step.
+    public int nextFree(int from) {
+        if (from >= size) return -1;
+        int w = from >>> 6;
+        long free = ~words[w] & (-1L << from);
+        while (true) {
+            if (free != 0) {
+                int block = (w << 6) + Long.numberOfTrailingZeros(free);
+                return block < size ? block : -1;
+            }
+            if (++w == words.length) return -1;
+            free = ~words[w];
+        }
+    }
+
+    // First used block at or after from, or size when there is none
+    public int nextUsed(int from) {
+        if (from >= size) return size;
+        int w = from >>> 6;
+        long used = words[w] & (-1L << from);
+        while (true) {
+            if (used != 0) {
+                return Math.min(size, (w << 6) + Long.numberOfTrailingZeros(used));
+            }
+            if (++w == words.length) return size;
+            used = words[w];
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package ca.concordia.filesystem.datastructures;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Contents of recently read data, as runs of consecutive blocks keyed by the run's first block number. Split into shards
+// with their own lock and LRU order so readers rarely contend. Bounded by the bytes it holds, cached arrays must not be modified.
+public final class BlockCache {
+
+    private static final int SHARDS = 16;
+
+    private final Shard[] shards = new Shard[SHARDS];
+    private volatile long shardCapacity;//bytes per shard
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public BlockCache(long capacityBytes) {
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new Shard();
+        }
+        setCapacity(capacityBytes);
+    }
+
+    public void setCapacity(long capacityBytes) {
+        if (capacityBytes < 0) {
+            throw new IllegalArgumentException("Cache size cannot be negative.");
+        }
+        shardCapacity = capacityBytes / SHARDS;
+        for (Shard s : shards) {
+            synchronized (s) {
+                s.evictTo(shardCapacity);
+            }
+        }
+    }
+
+    // Largest read worth caching, anything bigger would only flush a shard
+    public long maxCachedRead() {
+        return shardCapacity;
+    }
+
+    public byte[] get(int block) {
+        if (shardCapacity == 0) return null;
+        Shard s = shardOf(block);
+        byte[] data;
+        synchronized (s) {
+            data = s.map.get(block);
+        }
+        if (data != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return data;
+    }
+
+    public void put(int block, byte[] data) {
+        long capacity = shardCapacity;
+        if (data.length > capacity) return;
+        Shard s = shardOf(block);
+        synchronized (s) {
+            byte[] old = s.map.put(block, data);
+            s.bytes += data.length - (old != null ? old.length : 0);
+            s.evictTo(capacity);
+        }
+    }
+
+    public void invalidate(int block) {
+        Shard s = shardOf(block);
+        synchronized (s) {
+            if (s.map.isEmpty()) return;
+            byte[] old = s.map.remove(block);
+            if (old != null) {
+                s.bytes -= old.length;
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getSizeBytes() {
+        long total = 0;
+        for (Shard s : shards) {
+            synchronized (s) {
+                total += s.bytes;
+            }
+        }
+        return total;
+    }
+
+    private Shard shardOf(int block) {
+        int h = block * 0x9E3779B9;//runs of one file land in different shards
+        return shards[(h ^ (h >>> 16)) & (SHARDS - 1)];
+    }
+
+    private class Shard {
+        final LinkedHashMap<Integer, byte[]> map = new LinkedHashMap<>(64, 0.75f, true);//access order = LRU first
+        long bytes;
+
+        void evictTo(long capacity) {
+            Iterator<Map.Entry<Integer, byte[]>> it = map.entrySet().iterator();
+            while (bytes > capacity && it.hasNext()) {
+                bytes -= it.next().getValue().length;
+                it.remove();
+                evictions.increment();
+            }
+        }
+    }
+}
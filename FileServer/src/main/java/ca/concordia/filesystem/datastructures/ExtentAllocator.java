@@ -0,0 +1,136 @@
+package ca.concordia.filesystem.datastructures;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+// Free space as runs of contiguous blocks. Keeps the BlockBitmap in step so the bitmap stays the persistent truth.
+// Runs are returned as int pairs {start, length, start, length, ...}. Not thread safe, caller holds the allocation lock.
+public final class ExtentAllocator {
+
+    private final BlockBitmap bitmap;
+    private final TreeMap<Integer, Integer> byStart = new TreeMap<>();//start -> length
+    private final TreeSet<Long> bySize = new TreeSet<>();//(length << 32) | start, smallest run that fits is ceiling()
+
+    public ExtentAllocator(BlockBitmap bitmap) {
+        this.bitmap = bitmap;
+        rebuild();
+    }
+
+    // Reads the free runs from the bitmap, which format or mount filled in directly
+    private void rebuild() {
+        int start = bitmap.nextFree(0);
+        while (start != -1) {
+            int end = bitmap.nextUsed(start);
+            addRun(start, end - start);
+            start = end < bitmap.size() ? bitmap.nextFree(end) : -1;
+        }
+    }
+
+    public int freeExtentCount() {
+        return byStart.size();
+    }
+
+    public int largestFreeExtent() {
+        return bySize.isEmpty() ? 0 : (int) (bySize.last() >>> 32);
+    }
+
+    // Allocates count blocks in as few runs as possible: a run starting at hint if it is free (so appends stay
+    // contiguous), else the smallest free run that holds everything, else the largest runs first.
+    // Returns null when there is not enough free space.
+    public int[] allocate(int count, int hint) {
+        if (count == 0) return new int[0];
+        if (count > bitmap.freeCount()) return null;
+
+        if (hint >= 0) {
+            Map.Entry<Integer, Integer> at = byStart.floorEntry(hint);
+            if (at != null && at.getKey() + at.getValue() > hint) {
+                int take = Math.min(count, at.getKey() + at.getValue() - hint);
+                takeRange(at.getKey(), at.getValue(), hint, take);
+                if (take == count) return new int[]{hint, take};
+                int[] rest = allocate(count - take, -1);
+                int[] runs = new int[rest.length + 2];
+                runs[0] = hint;
+                runs[1] = take;
+                System.arraycopy(rest, 0, runs, 2, rest.length);
+                return runs;
+            }
+        }
+
+        Long fit = bySize.ceiling((long) count << 32);
+        if (fit != null) {
+            int start = (int) (long) fit;
+            takeRange(start, (int) (fit >>> 32), start, count);
+            return new int[]{start, count};
+        }
+
+        int[] runs = new int[8];
+        int n = 0;
+        while (count > 0) {
+            long largest = bySize.last();
+            int start = (int) largest;
+            int take = Math.min(count, (int) (largest >>> 32));
+            takeRange(start, (int) (largest >>> 32), start, take);
+            if (n + 2 > runs.length) runs = Arrays.copyOf(runs, runs.length * 2);
+            runs[n++] = start;
+            runs[n++] = take;
+            count -= take;
+        }
+        return Arrays.copyOf(runs, n);
+    }
+
+    // Start of the lowest free run that holds count blocks and starts before limit, or -1
+    public int lowestFit(int count, int limit) {
+        for (Map.Entry<Integer, Integer> run : byStart.headMap(limit, false).entrySet()) {
+            if (run.getValue() >= count) return run.getKey();
+        }
+        return -1;
+    }
+
+    public void free(int start, int length) {
+        for (int b = start; b < start + length; b++) {
+            if (bitmap.isFree(b)) {
+                throw new IllegalStateException("Block " + b + " freed twice");
+            }
+            bitmap.setFree(b);
+        }
+        Map.Entry<Integer, Integer> before = byStart.floorEntry(start - 1);
+        if (before != null && before.getKey() + before.getValue() == start) {//merge with the run ending right here
+            removeRun(before.getKey(), before.getValue());
+            start = before.getKey();
+            length += before.getValue();
+        }
+        Integer afterLength = byStart.get(start + length);
+        if (afterLength != null) {//merge with the run starting right after
+            removeRun(start + length, afterLength);
+            length += afterLength;
+        }
+        addRun(start, length);
+    }
+
+    // Removes [from, from + take) out of the free run [runStart, runStart + runLength)
+    private void takeRange(int runStart, int runLength, int from, int take) {
+        removeRun(runStart, runLength);
+        if (from > runStart) {
+            addRun(runStart, from - runStart);
+        }
+        int tail = runStart + runLength - (from + take);
+        if (tail > 0) {
+            addRun(from + take, tail);
+        }
+        for (int b = from; b < from + take; b++) {
+            bitmap.setUsed(b);
+        }
+    }
+
+    private void addRun(int start, int length) {
+        byStart.put(start, length);
+        bySize.add(((long) length << 32) | start);
+    }
+
+    private void removeRun(int start, int length) {
+        byStart.remove(start);
+        bySize.remove(((long) length << 32) | start);
+    }
+}
@@ -1,60 +1,188 @@
 package ca.concordia.filesystem.datastructures;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class FEntry {
 
+    public static final int DISK_SIZE = 32; // name[11], flags(1), filesize(8), firstBlock(4), parent + 1(4), compressedSize(4)
+    private static final byte FLAG_DIRECTORY = 1;
+
+    private final int index; // slot number in the file table, -1 if not part of one
     private String filename;
-    private short filesize;
-    private short firstBlock; // Pointers to data blocks
+    private long filesize;
+    private int firstBlock; // Pointers to data blocks
+    private int compressedSize; // bytes the blocks hold when the contents are stored compressed, 0 = stored as is
+    private int parent = -1; // slot of the directory holding this entry, -1 for the root directory
+    private TreeMap<String, FEntry> children; // entries of a directory by name, null for a file, in memory only
+    private int[] extents = new int[0]; // {start, length, ...} runs of the block chain, in memory only
+    private int generation; // bumped every time the slot is created or deleted, changed only under the write lock
+    private int version; // bumped by every write to the contents, changed only under the write lock
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(); // per-file lock: readers share, writers are exclusive
 
     public FEntry() {//default constructor
+        this(-1);
+    }
+
+    public FEntry(int index) {
+        this.index = index;
         this.filename = "";
         this.filesize = 0;
         this.firstBlock = -1;
     }
 
-    public FEntry(String filename, short filesize, short firstblock) throws IllegalArgumentException {
+    public FEntry(String filename, long filesize, int firstblock) throws IllegalArgumentException {
         //Check filename is max 11 bytes long
-        if (filename.length() > 11) {
+        if (nameTooLong(filename)) {
             throw new IllegalArgumentException("Filename cannot be longer than 11 characters.");
         }
+        this.index = -1;
         this.filename = filename;
         this.filesize = filesize;
         this.firstBlock = firstblock;
     }
 
     // Getters and Setters
+    public int getIndex() {
+        return index;
+    }
+
     public String getFilename() {
         return filename;
     }
 
     public void setFilename(String filename) {
-        if (filename.length() > 11) {
+        if (nameTooLong(filename)) {
             throw new IllegalArgumentException("Filename cannot be longer than 11 characters.");
         }
         this.filename = filename;
     }
 
-    public short getFilesize() {
+    public long getFilesize() {
         return filesize;
     }
 
-    public void setFilesize(short filesize) {
+    public void setFilesize(long filesize) {
         if (filesize < 0) {
             throw new IllegalArgumentException("Filesize cannot be negative.");
         }
         this.filesize = filesize;
     }
 
-    public short getFirstBlock() {
+    public int getFirstBlock() {
         return firstBlock;
     }
 
-    public void setFirstBlock(short firstBlock) {
+    public void setFirstBlock(int firstBlock) {
         this.firstBlock = firstBlock;
     }
 
+    public boolean isCompressed() {
+        return compressedSize > 0;
+    }
+
+    public void setCompressedSize(int compressedSize) {
+        if (compressedSize < 0) {
+            throw new IllegalArgumentException("Compressed size cannot be negative.");
+        }
+        this.compressedSize = compressedSize;
+    }
+
+    // Bytes of the block chain in use: the compressed size, or the file size for a file stored as is
+    public long getStoredSize() {
+        return compressedSize > 0 ? compressedSize : filesize;
+    }
+
+    public int getParent() {
+        return parent;
+    }
+
+    public void setParent(int parent) {
+        this.parent = parent;
+    }
+
+    public boolean isDirectory() {
+        return children != null;
+    }
+
+    // A directory starts out empty, its children are filled in by the file system
+    public void setDirectory(boolean directory) {
+        children = directory ? new TreeMap<>() : null;
+    }
+
+    public TreeMap<String, FEntry> getChildren() {
+        return children;
+    }
+
+    public int[] getExtents() {
+        return extents;
+    }
+
+    public void setExtents(int[] extents) {
+        this.extents = extents;
+    }
+
+    public int getGeneration() {
+        return generation;
+    }
+
+    public void bumpGeneration() {
+        generation++;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public void bumpVersion() {
+        version++;
+    }
+
+    public ReentrantReadWriteLock getLock() {
+        return lock;
+    }
+
     public boolean isUsed() {
         return filename != null && !filename.isEmpty();
     }
+
+    // Serializes the slot at the buffer position, an unused slot is written as all zeros apart from firstBlock
+    public void writeTo(ByteBuffer buf) {
+        int start = buf.position();
+        byte[] nameBytes = isUsed() ? filename.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        buf.put(nameBytes);
+        for (int i = nameBytes.length; i < 11; i++) {
+            buf.put((byte) 0);//pad name to 11 bytes
+        }
+        buf.put(isUsed() && isDirectory() ? FLAG_DIRECTORY : 0);
+        buf.putLong(filesize);
+        buf.putInt(firstBlock);
+        buf.putInt(isUsed() ? parent + 1 : 0);//0 = root, so volumes from before directories read as one flat root
+        buf.putInt(isUsed() ? compressedSize : 0);
+        buf.position(start + DISK_SIZE);
+    }
+
+    public void readFrom(ByteBuffer buf) {
+        int start = buf.position();
+        int len = 0;
+        while (len < 11 && buf.get(start + len) != 0) {
+            len++;
+        }
+        byte[] nameBytes = new byte[len];
+        buf.get(nameBytes);
+        this.filename = new String(nameBytes, StandardCharsets.UTF_8);
+        setDirectory((buf.get(start + 11) & FLAG_DIRECTORY) != 0);
+        buf.position(start + 12);
+        this.filesize = buf.getLong();
+        this.firstBlock = buf.getInt();
+        this.parent = buf.getInt() - 1;
+        this.compressedSize = Math.max(0, buf.getInt());
+        buf.position(start + DISK_SIZE);
+    }
+
+    public static boolean nameTooLong(String filename) {//11 bytes on disk, so multi-byte characters count more than once
+        return filename.length() > 11 || filename.getBytes(StandardCharsets.UTF_8).length > 11;
+    }
 }
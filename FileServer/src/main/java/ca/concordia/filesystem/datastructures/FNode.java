@@ -1,7 +1,11 @@
 package ca.concordia.filesystem.datastructures;
 
+import java.nio.ByteBuffer;
+
 public class FNode {
 
+    public static final int DISK_SIZE = 8; // blockIndex(4), next(4)
+
     private int blockIndex;// negativ efree, positive used
     private int next;//-1 if none
 
@@ -29,4 +33,14 @@ public class FNode {
     public boolean isUsed() {
         return blockIndex >= 0;
     }
+
+    public void writeTo(ByteBuffer buf) {
+        buf.putInt(blockIndex);
+        buf.putInt(next);
+    }
+
+    public void readFrom(ByteBuffer buf) {
+        this.blockIndex = buf.getInt();
+        this.next = buf.getInt();
+    }
 }
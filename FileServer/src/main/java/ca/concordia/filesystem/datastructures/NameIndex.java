@@ -0,0 +1,104 @@
+package ca.concordia.filesystem.datastructures;
+
+import java.util.Arrays;
+
+// Open-addressing hash map from file name to FEntry slot, linear probing with tombstones.
+// Not thread safe, FileSystemManager guards it with its namespace lock.
+public class NameIndex {
+
+    private static final int EMPTY = -1;
+    private static final int DELETED = -2;//tombstone, keeps probe chains intact after a remove
+
+    private String[] keys;
+    private int[] values;//slot number, or EMPTY / DELETED
+    private int size;
+    private int occupied;//live entries plus tombstones, drives resizing
+
+    public NameIndex(int expectedEntries) {
+        int capacity = 16;
+        while (capacity < expectedEntries * 2) {//stay at most half full
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    public int get(String name) {
+        int mask = values.length - 1;
+        for (int i = mix(name.hashCode()) & mask; ; i = (i + 1) & mask) {
+            int v = values[i];
+            if (v == EMPTY) return -1;
+            if (v != DELETED && keys[i].equals(name)) return v;
+        }
+    }
+
+    public void put(String name, int slot) {
+        if ((occupied + 1) * 2 > values.length) {
+            rehash(size * 4 > values.length ? values.length * 2 : values.length);//only tombstones to clear -> same size
+        }
+        int mask = values.length - 1;
+        int firstFree = -1;
+        for (int i = mix(name.hashCode()) & mask; ; i = (i + 1) & mask) {
+            int v = values[i];
+            if (v == EMPTY) {
+                if (firstFree == -1) {
+                    firstFree = i;
+                    occupied++;
+                }
+                break;
+            }
+            if (v == DELETED) {
+                if (firstFree == -1) firstFree = i;//reuse the tombstone, but keep looking for an existing key
+            } else if (keys[i].equals(name)) {
+                values[i] = slot;
+                return;
+            }
+        }
+        keys[firstFree] = name;
+        values[firstFree] = slot;
+        size++;
+    }
+
+    public int remove(String name) {
+        int mask = values.length - 1;
+        for (int i = mix(name.hashCode()) & mask; ; i = (i + 1) & mask) {
+            int v = values[i];
+            if (v == EMPTY) return -1;
+            if (v != DELETED && keys[i].equals(name)) {
+                keys[i] = null;
+                values[i] = DELETED;
+                size--;
+                return v;
+            }
+        }
+    }
+
+    public void clear() {
+        allocate(values.length);
+    }
+
+    private void allocate(int capacity) {
+        keys = new String[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, EMPTY);
+        size = 0;
+        occupied = 0;
+    }
+
+    private void rehash(int capacity) {
+        String[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] >= 0) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    private static int mix(int h) {//spread the String hash so short similar names do not cluster
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
+}
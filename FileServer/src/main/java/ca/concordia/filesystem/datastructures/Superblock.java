@@ -0,0 +1,70 @@
+package ca.concordia.filesystem.datastructures;
+
+import java.nio.ByteBuffer;
+
+// Volume geometry stored in the first bytes of the disk file
+public class Superblock {
+
+    public static final int MAGIC = 0x46535631; // "FSV1"
+    public static final int VERSION = 1;
+    public static final int SIZE = 32; // bytes on disk, rest of the record is reserved
+
+    private final int blockSize;
+    private final int totalBlocks;
+    private final int maxFiles;
+    private final int metadataBlocks;
+    private final long volumeId;//random, ties a journal to its volume. 0 on volumes formatted before it existed
+
+    public Superblock(int blockSize, int totalBlocks, int maxFiles, int metadataBlocks, long volumeId) {
+        this.blockSize = blockSize;
+        this.totalBlocks = totalBlocks;
+        this.maxFiles = maxFiles;
+        this.metadataBlocks = metadataBlocks;
+        this.volumeId = volumeId;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getTotalBlocks() {
+        return totalBlocks;
+    }
+
+    public int getMaxFiles() {
+        return maxFiles;
+    }
+
+    public int getMetadataBlocks() {
+        return metadataBlocks;
+    }
+
+    public long getVolumeId() {
+        return volumeId;
+    }
+
+    public void writeTo(ByteBuffer buf) {
+        int start = buf.position();
+        buf.putInt(MAGIC);
+        buf.putInt(VERSION);
+        buf.putInt(blockSize);
+        buf.putInt(totalBlocks);
+        buf.putInt(maxFiles);
+        buf.putInt(metadataBlocks);
+        buf.putLong(volumeId);
+        while (buf.position() < start + SIZE) {
+            buf.put((byte) 0);
+        }
+    }
+
+    // Returns null when the buffer does not hold a superblock of this version
+    public static Superblock readFrom(ByteBuffer buf) {
+        int start = buf.position();
+        if (buf.remaining() < SIZE || buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+            return null;
+        }
+        Superblock sb = new Superblock(buf.getInt(), buf.getInt(), buf.getInt(), buf.getInt(), buf.getLong());
+        buf.position(start + SIZE);
+        return sb;
+    }
+}
@@ -0,0 +1,28 @@
+package ca.concordia.filesystem.device;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+// Byte-addressed storage behind the file system. Every call takes an absolute position and there is no shared
+// file pointer, so implementations must be safe for concurrent readers and writers of different ranges.
+public interface BlockDevice extends Closeable {
+
+    enum Type {
+        CHANNEL, // FileChannel pread/pwrite
+        MAPPED   // memory-mapped file
+    }
+
+    // Opens (creating if needed) a device backed by the given file, growing the file to at least size bytes
+    static BlockDevice open(String path, long size, Type type) throws IOException {
+        return type == Type.MAPPED ? new MappedDevice(path, size) : new FileChannelDevice(path, size);
+    }
+
+    long size();
+
+    void read(long position, byte[] dst, int offset, int length) throws IOException;
+
+    void write(long position, byte[] src, int offset, int length) throws IOException;
+
+    // Makes every completed write durable
+    void force() throws IOException;
+}
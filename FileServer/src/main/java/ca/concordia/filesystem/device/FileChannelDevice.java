@@ -0,0 +1,57 @@
+package ca.concordia.filesystem.device;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Positional I/O on a FileChannel (pread/pwrite), concurrent calls do not interfere with each other
+public class FileChannelDevice implements BlockDevice {
+
+    private final FileChannel channel;
+    private final long size;
+
+    public FileChannelDevice(String path, long size) throws IOException {
+        this.channel = FileChannel.open(Path.of(path), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (channel.size() < size) {
+            channel.write(ByteBuffer.wrap(new byte[1]), size - 1);//extends the file, sparse where supported
+        }
+        this.size = channel.size();//an existing larger volume is opened whole
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public void read(long position, byte[] dst, int offset, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(dst, offset, length);
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, position + (buf.position() - offset));
+            if (n < 0) {
+                throw new EOFException("Read past end of device at " + position);
+            }
+        }
+    }
+
+    @Override
+    public void write(long position, byte[] src, int offset, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(src, offset, length);
+        while (buf.hasRemaining()) {
+            channel.write(buf, position + (buf.position() - offset));
+        }
+    }
+
+    @Override
+    public void force() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
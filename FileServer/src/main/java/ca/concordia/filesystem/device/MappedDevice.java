@@ -0,0 +1,85 @@
+package ca.concordia.filesystem.device;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Memory-mapped device. A single mapping is limited to 2 GB, so the file is mapped in fixed-size segments.
+// Only absolute get/put are used on the shared buffers, which never touch their position.
+public class MappedDevice implements BlockDevice {
+
+    private static final int SEGMENT_SHIFT = 30;//1 GB segments
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer[] segments;
+    private final long size;
+
+    public MappedDevice(String path, long size) throws IOException {
+        this.channel = FileChannel.open(Path.of(path), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (channel.size() < size) {
+            channel.write(ByteBuffer.wrap(new byte[1]), size - 1);
+        }
+        this.size = channel.size();//an existing larger volume is mapped whole
+        int count = (int) ((this.size + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+        segments = new MappedByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            long start = (long) i << SEGMENT_SHIFT;
+            segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(SEGMENT_SIZE, this.size - start));
+        }
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public void read(long position, byte[] dst, int offset, int length) throws IOException {
+        check(position, length);
+        while (length > 0) {
+            MappedByteBuffer seg = segments[(int) (position >>> SEGMENT_SHIFT)];
+            int index = (int) (position & (SEGMENT_SIZE - 1));
+            int n = Math.min(length, seg.capacity() - index);//a request may straddle two segments
+            seg.get(index, dst, offset, n);
+            position += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    @Override
+    public void write(long position, byte[] src, int offset, int length) throws IOException {
+        check(position, length);
+        while (length > 0) {
+            MappedByteBuffer seg = segments[(int) (position >>> SEGMENT_SHIFT)];
+            int index = (int) (position & (SEGMENT_SIZE - 1));
+            int n = Math.min(length, seg.capacity() - index);
+            seg.put(index, src, offset, n);
+            position += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    @Override
+    public void force() throws IOException {
+        for (MappedByteBuffer seg : segments) {
+            seg.force();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();//mappings stay valid until they are garbage collected
+    }
+
+    private void check(long position, long length) throws IOException {
+        if (position < 0 || length < 0 || position + length > size) {
+            throw new IOException("Access outside device: " + position + "+" + length);
+        }
+    }
+}
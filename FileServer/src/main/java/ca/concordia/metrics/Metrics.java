@@ -0,0 +1,67 @@
+package ca.concordia.metrics;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Named counters, latency histograms and gauges. Look instruments up once and keep them, recording into them is
+// lock-free; only registration and report() walk the maps.
+public class Metrics {
+
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    public Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    // A value computed when the report is made, registering the same name again replaces it
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    // One line per instrument, sorted by name. Histograms are in nanoseconds and reported in microseconds.
+    public List<String> report() {
+        Map<String, String> lines = new TreeMap<>();
+        counters.forEach((name, c) -> lines.put(name, name + "=" + c.sum()));
+        gauges.forEach((name, g) -> lines.put(name, name + "=" + g.getAsLong()));
+        histograms.forEach((name, h) -> {
+            if (h.getCount() == 0) return;//commands nobody has used yet
+            lines.put(name, String.format("%s count=%d mean=%.1fus p50=%.1fus p99=%.1fus p999=%.1fus max=%.1fus",
+                    name, h.getCount(), h.getMean() / 1000.0, h.getPercentile(50) / 1000.0,
+                    h.getPercentile(99) / 1000.0, h.getPercentile(99.9) / 1000.0, h.getMax() / 1000.0));
+        });
+        return new ArrayList<>(lines.values());
+    }
+
+    // Prints the report every intervalMillis on a daemon thread
+    public Thread startReporter(long intervalMillis, PrintStream out) {
+        Thread t = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(intervalMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                StringBuilder sb = new StringBuilder("Stats:");
+                for (String line : report()) {
+                    sb.append(System.lineSeparator()).append("  ").append(line);
+                }
+                out.println(sb);
+            }
+        }, "stats-reporter");
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+}
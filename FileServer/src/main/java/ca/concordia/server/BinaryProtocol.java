@@ -0,0 +1,208 @@
+package ca.concordia.server;
+
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.metrics.Histogram;
+import ca.concordia.metrics.Metrics;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Length-prefixed framing a text client switches to with the BINARY command. File contents may hold any bytes and are
+// streamed between the socket and the disk block by block instead of being held in memory whole.
+//
+// Request:  opcode(1) nameLength(2) name(UTF-8) payloadLength(8) payload
+// Response: status(1) length(8) body      status OK carries the result, ERROR the message (UTF-8). Big-endian throughout.
+// READ answers with the file contents, LIST and STATS with lines separated by '\n', everything else with an empty body.
+// LIST with a directory name (and optionally a cursor as payload) answers with one page, as the text command does.
+class BinaryProtocol {
+
+    static final int OP_CREATE = 1;
+    static final int OP_WRITE = 2;
+    static final int OP_READ = 3;
+    static final int OP_DELETE = 4;
+    static final int OP_LIST = 5;
+    static final int OP_DISCONNECT = 6;
+    static final int OP_READ_RANGE = 7;//payload: offset(8) length(4)
+    static final int OP_WRITE_AT = 8;//payload: offset(8) then the data
+    static final int OP_APPEND = 9;
+    static final int OP_STATS = 10;//answers with the metrics report, one instrument per line
+    static final int OP_MKDIR = 11;
+
+    private static final String[] OP_NAMES = {null, "CREATE", "WRITE", "READ", "DELETE", "LIST", "DISCONNECT",
+            "READ_RANGE", "WRITE_AT", "APPEND", "STATS", "MKDIR"};
+
+    static final int STATUS_OK = 0;
+    static final int STATUS_ERROR = 1;
+
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+    private static final int HEADER_SIZE = 9;
+    private static final byte[] EMPTY = new byte[0];
+
+    private final FileSystemManager fs;
+    private final Histogram[] latency = new Histogram[OP_NAMES.length];//by opcode, bad opcodes are not recorded
+
+    BinaryProtocol(FileSystemManager fs) {
+        this.fs = fs;
+        Metrics metrics = fs.getMetrics();
+        for (int op = 1; op < OP_NAMES.length; op++) {
+            latency[op] = metrics.histogram("bin." + OP_NAMES[op]);
+        }
+    }
+
+    // Answers frames until the client disconnects. in must be the same buffered stream the text protocol read from,
+    // so bytes the client sent right after BINARY are not lost.
+    void serve(InputStream in, OutputStream rawOut) throws IOException {
+        DataInputStream din = new DataInputStream(in);
+        //not a DataOutputStream: its synchronized write would pin a virtual thread that blocks on a slow client
+        OutputStream out = new BufferedOutputStream(rawOut, OUTPUT_BUFFER_SIZE);
+        while (true) {
+            int op = din.read();
+            if (op < 0) return;
+            int nameLength = din.readUnsignedShort();
+            byte[] rawName = din.readNBytes(nameLength);
+            if (rawName.length < nameLength) throw new EOFException();
+            String name = new String(rawName, StandardCharsets.UTF_8);
+            long payloadLength = din.readLong();
+            if (payloadLength < 0) {
+                reply(out, STATUS_ERROR, "negative payload length".getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                return;//framing is lost, nothing after this can be trusted
+            }
+            Payload payload = new Payload(din, payloadLength);
+
+            boolean[] streaming = {false};
+            long start = System.nanoTime();
+            try {
+                switch (op) {
+                    case OP_CREATE, OP_MKDIR -> {
+                        if (name.length() - name.lastIndexOf('/') - 1 > 11) {
+                            throw new Exception("filename too large");
+                        }
+                        if (op == OP_MKDIR) {
+                            fs.createDirectory(name);
+                        } else {
+                            fs.createFile(name);
+                        }
+                        reply(out, STATUS_OK, EMPTY);
+                    }
+                    case OP_WRITE -> {
+                        fs.writeFile(name, payload, payloadLength);
+                        reply(out, STATUS_OK, EMPTY);
+                    }
+                    case OP_READ -> fs.transferFile(name, out, size -> {
+                        streaming[0] = true;//from here on a failure cannot be reported in-band
+                        header(out, STATUS_OK, size);
+                    });
+                    case OP_READ_RANGE -> {
+                        DataInputStream args = new DataInputStream(payload);
+                        reply(out, STATUS_OK, fs.readFile(name, args.readLong(), args.readInt()));
+                    }
+                    case OP_WRITE_AT -> {
+                        long offset = new DataInputStream(payload).readLong();
+                        fs.writeFile(name, offset, payload, payloadLength - 8);
+                        reply(out, STATUS_OK, EMPTY);
+                    }
+                    case OP_APPEND -> {
+                        fs.appendFile(name, payload, payloadLength);
+                        reply(out, STATUS_OK, EMPTY);
+                    }
+                    case OP_DELETE -> {
+                        fs.deleteFile(name);
+                        reply(out, STATUS_OK, EMPTY);
+                    }
+                    case OP_LIST -> {
+                        if (name.isEmpty() && payloadLength == 0) {
+                            reply(out, STATUS_OK, String.join("\n", fs.listFiles()).getBytes(StandardCharsets.UTF_8));
+                        } else {
+                            reply(out, STATUS_OK, listPage(name, payloadLength == 0 ? null
+                                    : new String(payload.readAllBytes(), StandardCharsets.UTF_8)));
+                        }
+                    }
+                    case OP_STATS -> reply(out, STATUS_OK, String.join("\n", fs.getMetrics().report()).getBytes(StandardCharsets.UTF_8));
+                    case OP_DISCONNECT -> {
+                        reply(out, STATUS_OK, EMPTY);
+                        out.flush();
+                        return;
+                    }
+                    default -> throw new Exception("Unknown opcode " + op);
+                }
+            } catch (Exception e) {
+                if (streaming[0] || (e instanceof EOFException && payload.remaining > 0)) {
+                    throw e instanceof IOException io ? io : new IOException(e);
+                }
+                String message = e instanceof EOFException ? "payload too short" : String.valueOf(e.getMessage());
+                reply(out, STATUS_ERROR, message.getBytes(StandardCharsets.UTF_8));
+            }
+            if (op < latency.length && latency[op] != null) {
+                latency[op].record(System.nanoTime() - start);
+            }
+            payload.skipRest();//a command that failed or takes no payload leaves it unread
+            if (din.available() == 0) {
+                out.flush();//no pipelined request waiting, send what we have
+            }
+        }
+    }
+
+    // Names of one page of the directory, directories marked with a trailing '/', and a last line "/" if more follow
+    private byte[] listPage(String dir, String cursor) throws Exception {
+        StringBuilder page = new StringBuilder();
+        if (cursor != null && cursor.endsWith("/")) {
+            cursor = cursor.substring(0, cursor.length() - 1);
+        }
+        boolean more = fs.listDirectory(dir, cursor, CommandProcessor.LIST_PAGE_SIZE, (entry, directory) -> {
+            if (page.length() > 0) page.append('\n');
+            page.append(entry).append(directory ? "/" : "");
+        });
+        if (more) {
+            page.append("\n/");
+        }
+        return page.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void reply(OutputStream out, int status, byte[] body) throws IOException {
+        header(out, status, body.length);
+        out.write(body);
+    }
+
+    private static void header(OutputStream out, int status, long length) throws IOException {
+        out.write(ByteBuffer.allocate(HEADER_SIZE).put((byte) status).putLong(length).array());
+    }
+
+    // The payload of one frame: reads stop at its end so a command cannot eat into the next frame
+    private static class Payload extends InputStream {
+        private final InputStream in;
+        private long remaining;
+
+        Payload(InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining == 0) return -1;
+            int b = in.read();
+            if (b >= 0) remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining == 0) return -1;
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) remaining -= n;
+            return n;
+        }
+
+        void skipRest() throws IOException {
+            in.skipNBytes(remaining);
+            remaining = 0;
+        }
+    }
+}
@@ -0,0 +1,345 @@
+package ca.concordia.server;
+
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.metrics.Histogram;
+import ca.concordia.metrics.Metrics;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+// Executes one line of the text protocol against the file system, shared by every server engine.
+// Works on the bytes of the line where the engine read it: tokens are index ranges, the command is matched in place and
+// the reply is appended to a ReplyBuffer the caller reuses, so a request only allocates its file name.
+class CommandProcessor {
+
+    static final int REPLY = 0;//a reply line was appended
+    static final int BLANK = 1;//empty line, nothing appended
+    static final int DISCONNECT = 2;//BYE was appended, close after sending it
+
+    static final int MAX_BATCH = 10000;//commands in one BATCH
+    static final int LIST_PAGE_SIZE = 1000;//names in one reply to LIST dir [cursor]
+    static final int MAX_LINE_LENGTH = 8 * 1024 * 1024;//longer lines are rejected and the client is dropped, on both engines
+    static final byte[] LINE_TOO_LONG = "ERROR: line too long\n".getBytes(StandardCharsets.US_ASCII);
+
+    // Command codes are indexes into COMMANDS, UNKNOWN is anything else
+    private static final String[] COMMANDS = {"CREATE", "WRITE", "READ", "WRITEAT", "APPEND", "DELETE", "LIST", "STATS", "DISCONNECT", "BINARY", "MKDIR"};
+    private static final int CREATE = 0, WRITE = 1, READ = 2, WRITEAT = 3, APPEND = 4, DELETE = 5, LIST = 6, STATS = 7, QUIT = 8, BINARY = 9, MKDIR = 10;
+    private static final int UNKNOWN = COMMANDS.length;
+    private static final byte[] SUCCESS = "SUCCESS".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BYE = "BYE".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BAD_BATCH = ("ERROR: BATCH needs a count between 1 and " + MAX_BATCH + "\n").getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] MORE = " /".getBytes(StandardCharsets.US_ASCII);//ends a LIST page that is not the last
+    private static final byte[] ERROR_PREFIX = "ERROR: ".getBytes(StandardCharsets.US_ASCII);
+
+    private final FileSystemManager fs;
+    private final Histogram[] latency = new Histogram[UNKNOWN + 1];//by command code
+    private final LongAdder[] errors = new LongAdder[UNKNOWN + 1];
+    private final Histogram batchLatency;//whole BATCH including its commit, the lines are also counted one by one
+
+    CommandProcessor(FileSystemManager fs) {
+        this.fs = fs;
+        Metrics metrics = fs.getMetrics();
+        for (int cmd = 0; cmd <= UNKNOWN; cmd++) {
+            String name = cmd < UNKNOWN ? COMMANDS[cmd] : "UNKNOWN";//one bucket for the rest, so clients cannot grow the registry
+            latency[cmd] = metrics.histogram("cmd." + name);
+            errors[cmd] = metrics.counter("cmd." + name + ".errors");
+        }
+        batchLatency = metrics.histogram("cmd.BATCH");
+    }
+
+    // Requests may start with a tag like "#42 READ a", the reply then starts with the same tag.
+    // Returns where the tag of b[from, to) ends, from for an untagged line.
+    static int tagEnd(byte[] b, int from, int to) {
+        if (from == to || b[from] != '#') return from;
+        return indexOf(b, from, to, (byte) ' ');
+    }
+
+    // "BATCH n" announces n (at least 1) command lines that follow. Returns n, -1 if the line is something else,
+    // or -2 if it is a BATCH line with a bad count.
+    static int batchSize(byte[] b, int from, int to) {
+        from = trimStart(b, from, to);
+        to = trimEnd(b, from, to);
+        int wordEnd = indexOf(b, from, to, (byte) ' ');
+        if (!equalsIgnoreCase(b, from, wordEnd, "BATCH")) return -1;
+        int countStart = skipSpaces(b, wordEnd, to);
+        int countEnd = indexOf(b, countStart, to, (byte) ' ');
+        if (countStart == to || countEnd != to) return -2;//no count, or something after it
+        try {
+            long n = parseLong(b, countStart, countEnd);
+            return n > 0 && n <= MAX_BATCH ? (int) n : -2;//an empty batch would get no reply line at all
+        } catch (NumberFormatException e) {
+            return -2;
+        }
+    }
+
+    // Reply to a BATCH line whose count batchSize() rejected, the tag is b[from, tagEnd)
+    static void badBatch(byte[] b, int from, int tagEnd, ReplyBuffer reply) {
+        if (tagEnd > from) {
+            reply.append(b, from, tagEnd - from).append((byte) ' ');
+        }
+        reply.append(BAD_BATCH);
+    }
+
+    // True if b[from, to) is the single word command, in any case, surrounded by nothing but blanks
+    static boolean isOnly(byte[] b, int from, int to, String command) {
+        from = trimStart(b, from, to);
+        return equalsIgnoreCase(b, from, trimEnd(b, from, to), command);
+    }
+
+    // Runs the lines of a BATCH in order with one metadata commit, one reply line per request (with tag, if not null)
+    void processBatch(List<byte[]> lines, String tag, ReplyBuffer reply) {
+        int mark = reply.size();
+        long start = System.nanoTime();
+        try {
+            fs.runBatch(() -> {
+                for (byte[] line : lines) {
+                    if (tag != null) {
+                        reply.append(tag).append((byte) ' ');
+                    }
+                    int replyStart = reply.size();
+                    int result = execute(line, 0, line.length, reply);
+                    if (result == BLANK) {
+                        reply.append("ERROR: empty command\n");
+                    } else if (result == DISCONNECT) {
+                        reply.truncate(replyStart);
+                        reply.append("ERROR: DISCONNECT is not allowed in a batch\n");
+                    }
+                }
+            });
+        } catch (Exception e) {//the commit failed, nothing in the batch is known to be on disk
+            reply.truncate(mark);
+            for (int i = 0; i < lines.size(); i++) {
+                if (tag != null) {
+                    reply.append(tag).append((byte) ' ');
+                }
+                reply.append("ERROR: ").append(String.valueOf(e.getMessage())).append((byte) '\n');
+            }
+        }
+        batchLatency.record(System.nanoTime() - start);
+    }
+
+    // Runs the request in b[from, to) and appends its reply, prefixed with the request's tag and ended by '\n'.
+    // Returns REPLY, BLANK or DISCONNECT.
+    int process(byte[] b, int from, int to, ReplyBuffer reply) {
+        int mark = reply.size();
+        int tagEnd = tagEnd(b, from, to);
+        if (tagEnd > from) {
+            reply.append(b, from, tagEnd - from).append((byte) ' ');
+        }
+        int result = execute(b, tagEnd, to, reply);
+        if (result == BLANK) {
+            reply.truncate(mark);
+        }
+        return result;
+    }
+
+    // Metrics report, one "name value" entry per instrument separated by "; " to fit on one reply line
+    String stats() {
+        return String.join("; ", fs.getMetrics().report());
+    }
+
+    private int execute(byte[] b, int from, int to, ReplyBuffer reply) {
+        from = trimStart(b, from, to);
+        to = trimEnd(b, from, to);
+        if (from == to) return BLANK;
+
+        // Same tokens as line.split(" ", 3): the command, the name up to the next space, and everything after that
+        int cmdEnd = indexOf(b, from, to, (byte) ' ');
+        int cmd = commandOf(b, from, cmdEnd);
+        int nameStart = cmdEnd < to ? cmdEnd + 1 : -1;//-1 = no name
+        int nameEnd = nameStart < 0 ? -1 : indexOf(b, nameStart, to, (byte) ' ');
+        int restStart = nameEnd >= 0 && nameEnd < to ? nameEnd + 1 : -1;//-1 = nothing after the name
+
+        int mark = reply.size();
+        long start = System.nanoTime();
+        int result = REPLY;
+        try {
+            result = run(cmd, b, to, nameStart, nameEnd, restStart, reply);
+        } catch (NumberFormatException e) {
+            reply.truncate(mark);
+            reply.append("ERROR: invalid number ").append(String.valueOf(e.getMessage()));
+        } catch (Exception e) {
+            reply.truncate(mark);//a READ may have failed half way through its contents
+            reply.append("ERROR: ").append(String.valueOf(e.getMessage()));
+        }
+        reply.append((byte) '\n');
+        latency[cmd].record(System.nanoTime() - start);
+        if (reply.startsWith(mark, ERROR_PREFIX)) {//same test a client makes, READ of a file holding "ERROR: ..." counts too
+            errors[cmd].increment();
+        }
+        return result;
+    }
+
+    private int run(int cmd, byte[] b, int to, int nameStart, int nameEnd, int restStart, ReplyBuffer reply) throws Exception {
+        switch (cmd) {
+            case CREATE, MKDIR -> {
+                // First checks if file name is too large, if it isn't it try to create the file by calling the fsManager which is located in FileSystemManager.java, and it catches any exception which is part of the function.
+                if (nameStart < 0) {
+                    reply.append("ERROR: Missing filename");
+                    return REPLY;
+                }
+                String name = string(b, nameStart, nameEnd);
+                if (name.length() - name.lastIndexOf('/') - 1 > 11) {//only the last name of a path is new
+                    reply.append("ERROR: filename too large");
+                    return REPLY;
+                }
+                if (cmd == MKDIR) {
+                    fs.createDirectory(name);
+                } else {
+                    fs.createFile(name);
+                }
+                reply.append(SUCCESS);
+            }
+            case WRITE -> {
+                if (restStart < 0) {
+                    reply.append("ERROR: Missing filename or content");
+                    return REPLY;
+                }
+                fs.writeFile(string(b, nameStart, nameEnd), b, restStart, to - restStart);//content goes to disk from the line buffer
+                reply.append(SUCCESS);
+            }
+            case READ -> {
+                if (nameStart < 0) {
+                    reply.append("ERROR: Missing filename");
+                    return REPLY;
+                }
+                String name = string(b, nameStart, nameEnd);
+                if (restStart >= 0) {//READ name offset length
+                    int offStart = skipSpaces(b, restStart, to);
+                    int offEnd = indexOf(b, offStart, to, (byte) ' ');
+                    int lenStart = skipSpaces(b, offEnd, to);
+                    int lenEnd = indexOf(b, lenStart, to, (byte) ' ');
+                    if (offStart == offEnd || lenStart == lenEnd || lenEnd != to) {
+                        reply.append("ERROR: READ takes a filename, or a filename, offset and length");
+                        return REPLY;
+                    }
+                    long offset = parseLong(b, offStart, offEnd);
+                    long length = parseLong(b, lenStart, lenEnd);
+                    if (length > Integer.MAX_VALUE || length < Integer.MIN_VALUE) {
+                        throw new NumberFormatException("For input string: \"" + string(b, lenStart, lenEnd) + "\"");
+                    }
+                    fs.readFile(name, offset, (int) length, reply);
+                } else {
+                    fs.readFile(name, reply);//contents land in the reply buffer directly
+                }
+            }
+            case WRITEAT -> {//WRITEAT name offset data, a separate command since WRITE content may itself start with a number
+                int offEnd = restStart < 0 ? -1 : indexOf(b, restStart, to, (byte) ' ');
+                if (offEnd < 0 || offEnd == to) {
+                    reply.append("ERROR: Missing filename, offset or content");
+                    return REPLY;
+                }
+                long offset = parseLong(b, restStart, offEnd);
+                fs.writeFile(string(b, nameStart, nameEnd), offset, b, offEnd + 1, to - offEnd - 1);
+                reply.append(SUCCESS);
+            }
+            case APPEND -> {
+                if (restStart < 0) {
+                    reply.append("ERROR: Missing filename or content");
+                    return REPLY;
+                }
+                fs.appendFile(string(b, nameStart, nameEnd), b, restStart, to - restStart);
+                reply.append(SUCCESS);
+            }
+            case DELETE -> {
+                if (nameStart < 0) {
+                    reply.append("ERROR: Missing filename");
+                    return REPLY;
+                }
+                fs.deleteFile(string(b, nameStart, nameEnd));
+                reply.append(SUCCESS);
+            }
+            case LIST -> {//LIST alone names the whole root, LIST dir [cursor] one page of dir after the name cursor
+                String cursor = null;
+                if (restStart >= 0) {
+                    if (indexOf(b, restStart, to, (byte) ' ') != to) {
+                        reply.append("ERROR: LIST takes a directory and a cursor");
+                        return REPLY;
+                    }
+                    int cursorEnd = b[to - 1] == '/' ? to - 1 : to;//the last name of a page may be passed as listed
+                    cursor = string(b, restStart, cursorEnd);
+                }
+                int start = reply.size();
+                boolean more = fs.listDirectory(nameStart < 0 ? "" : string(b, nameStart, nameEnd), cursor,
+                        nameStart < 0 ? Integer.MAX_VALUE : LIST_PAGE_SIZE, (name, directory) -> {
+                            if (reply.size() > start) reply.append((byte) ' ');
+                            reply.append(name);
+                            if (directory) reply.append((byte) '/');
+                        });
+                if (more) {
+                    reply.append(MORE);
+                }
+            }
+            case STATS -> reply.append(stats());
+            case QUIT -> {
+                reply.append(BYE);
+                return DISCONNECT;
+            }
+            case BINARY -> reply.append("ERROR: binary mode is not supported by this server engine");//FileServer switches before it gets here
+            default -> reply.append("ERROR: Unknown command");
+        }
+        return REPLY;
+    }
+
+    // Finds the command without making a String of it: compare lengths first, then the letters ignoring case
+    private static int commandOf(byte[] b, int from, int to) {
+        for (int cmd = 0; cmd < COMMANDS.length; cmd++) {
+            if (equalsIgnoreCase(b, from, to, COMMANDS[cmd])) return cmd;
+        }
+        return UNKNOWN;
+    }
+
+    private static boolean equalsIgnoreCase(byte[] b, int from, int to, String word) {//word is upper case letters
+        if (to - from != word.length()) return false;
+        for (int i = 0; i < word.length(); i++) {
+            if ((b[from + i] | 0x20) != (word.charAt(i) | 0x20)) return false;//only ASCII letters map onto letters
+        }
+        return true;
+    }
+
+    // Decimal number with an optional sign, without going through a String unless it is malformed or too long
+    private static long parseLong(byte[] b, int from, int to) {
+        int i = from;
+        boolean negative = i < to && b[i] == '-';
+        if (i < to && (b[i] == '-' || b[i] == '+')) i++;
+        if (i == to || to - i > 18) {
+            return Long.parseLong(string(b, from, to));//empty, or possibly out of range: let the JDK decide and explain
+        }
+        long n = 0;
+        for (; i < to; i++) {
+            int d = b[i] - '0';
+            if (d < 0 || d > 9) {
+                throw new NumberFormatException("For input string: \"" + string(b, from, to) + "\"");
+            }
+            n = n * 10 + d;
+        }
+        return negative ? -n : n;
+    }
+
+    private static String string(byte[] b, int from, int to) {
+        return new String(b, from, to - from, StandardCharsets.UTF_8);
+    }
+
+    private static int indexOf(byte[] b, int from, int to, byte value) {//to when absent
+        for (int i = from; i < to; i++) {
+            if (b[i] == value) return i;
+        }
+        return to;
+    }
+
+    private static int skipSpaces(byte[] b, int from, int to) {
+        while (from < to && b[from] == ' ') from++;
+        return from;
+    }
+
+    private static int trimStart(byte[] b, int from, int to) {//what String.trim() removes: anything up to ' '
+        while (from < to && (b[from] & 0xFF) <= ' ') from++;
+        return from;
+    }
+
+    private static int trimEnd(byte[] b, int from, int to) {
+        while (to > from && (b[to - 1] & 0xFF) <= ' ') to--;
+        return to;
+    }
+}
@@ -1,114 +1,333 @@
 package ca.concordia.server;
 
 import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.metrics.Metrics;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 public class FileServer {
 
+    public enum ExecutionMode {
+        VIRTUAL, // one virtual thread per client, no cap
+        BOUNDED  // fixed worker pool with a bounded wait queue, extra clients are turned away
+    }
+
+    private static final int DEFAULT_BACKLOG = 1024;
+    private static final int DEFAULT_MAX_WORKERS = 256;
+    private static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    private static final byte[] SUCCESS_LINE = "SUCCESS\n".getBytes(StandardCharsets.US_ASCII);
+
     private final FileSystemManager fsManager;
     private final int port;
+    private final ExecutionMode mode;
+    private int backlog = DEFAULT_BACKLOG;
+    private int maxWorkers = DEFAULT_MAX_WORKERS;
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+    private final Set<Socket> activeClients = ConcurrentHashMap.newKeySet();//sockets currently owned by a handler
+    private volatile ServerSocket serverSocket;
+    private volatile ExecutorService executor;
+    private volatile Semaphore taggedSlots;//tagged requests running server-wide in BOUNDED mode, null = no limit
+    private volatile boolean running;
+    private final LongAdder accepted;
+    private final LongAdder rejected;
+    private final LongAdder clientErrors;
+
+    public FileServer(int port, String fileSystemName, long totalSize) throws IOException {
+        this(port, fileSystemName, totalSize, ExecutionMode.VIRTUAL);
+    }
+
+    public FileServer(int port, String fileSystemName, long totalSize, ExecutionMode mode) throws IOException {
+        this(port, new FileSystemManager(fileSystemName, totalSize), mode);
+    }
 
-    public FileServer(int port, String fileSystemName, int totalSize) throws FileNotFoundException {
-        this.fsManager = new FileSystemManager(fileSystemName, totalSize);
+    public FileServer(int port, FileSystemManager fsManager, ExecutionMode mode) {
+        this.fsManager = fsManager;
         this.port = port;
+        this.mode = mode;
+        Metrics metrics = fsManager.getMetrics();
+        accepted = metrics.counter("server.connections.accepted");
+        rejected = metrics.counter("server.connections.rejected");
+        clientErrors = metrics.counter("server.connections.errors");
+        metrics.gauge("server.connections.active", activeClients::size);
     }
 
-    public void start() {
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("Server started. Listening on port " + port);
+    public void setBacklog(int backlog) {
+        if (backlog <= 0) {
+            throw new IllegalArgumentException("Backlog must be positive.");
+        }
+        this.backlog = backlog;
+    }
+
+    public void setBoundedPool(int maxWorkers, int queueCapacity) {
+        if (maxWorkers <= 0 || queueCapacity < 0) {
+            throw new IllegalArgumentException("Invalid worker pool size.");
+        }
+        this.maxWorkers = maxWorkers;
+        this.queueCapacity = queueCapacity;
+    }
 
-            while (true) {
-                final Socket client = serverSocket.accept();
+    public void start() {
+        executor = createExecutor();
+        taggedSlots = mode == ExecutionMode.BOUNDED ? new Semaphore(maxWorkers) : null;
+        try (ServerSocket ss = new ServerSocket(port, backlog)) {
+            serverSocket = ss;
+            running = true;
+            System.out.println("Server started. Listening on port " + port + " (" + mode + ")");
 
-                Thread t = new Thread(new ClientHandler(client, fsManager));
-                t.start();
+            while (running) {
+                final Socket client;
+                try {
+                    client = ss.accept();
+                } catch (SocketException e) {
+                    if (!running) break;//listener closed by stop()
+                    throw e;
+                }
+                dispatch(client);
             }
         } catch (IOException e) {
             System.err.println("Server error: " + e.getMessage());
+        } finally {
+            running = false;
+        }
+    }
+
+    // Stops accepting, lets every handler finish the request it is working on, then waits up to timeoutMillis
+    public void stop(long timeoutMillis) {
+        running = false;
+        ServerSocket ss = serverSocket;
+        if (ss != null) {
+            try {
+                ss.close();
+            } catch (IOException ignored) {}
+        }
+        ExecutorService ex = executor;
+        if (ex == null) return;
+        ex.shutdown();
+
+        //closing the input side makes idle handlers see EOF, a handler mid-request still sends its reply
+        for (Socket s : activeClients) {
+            try {
+                s.shutdownInput();
+            } catch (IOException ignored) {}
+        }
+        try {
+            if (!ex.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                System.err.println("Shutdown timed out, closing " + activeClients.size() + " connections");
+                for (Socket s : activeClients) {
+                    closeQuietly(s);
+                }
+                ex.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            ex.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private ExecutorService createExecutor() {
+        if (mode == ExecutionMode.BOUNDED) {
+            //core == max so threads are created up front to the cap, then clients wait in the queue
+            return new ThreadPoolExecutor(maxWorkers, maxWorkers, 60L, TimeUnit.SECONDS,
+                    queueCapacity == 0 ? new SynchronousQueue<>() : new ArrayBlockingQueue<>(queueCapacity),
+                    new ThreadPoolExecutor.AbortPolicy());
+        }
+        return Executors.newVirtualThreadPerTaskExecutor();
+    }
+
+    private void dispatch(Socket client) {
+        accepted.increment();
+        activeClients.add(client);
+        try {
+            executor.execute(new ClientHandler(client, fsManager, activeClients, clientErrors, taggedSlots));
+        } catch (RejectedExecutionException e) {
+            //admission control: pool and queue are full, refuse instead of piling up threads
+            rejected.increment();
+            activeClients.remove(client);
+            try {
+                OutputStream out = client.getOutputStream();
+                out.write("ERROR: server busy\n".getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            } catch (IOException busyError) {
+                clientErrors.increment();//client already gone, it is dropped either way
+            }
+            closeQuietly(client);
         }
     }
 
+    private static void closeQuietly(Socket s) {
+        try {
+            s.close();
+        } catch (IOException ignored) {}
+    }
+
+    // Serves one client. Untagged requests are answered in order. Tagged requests ("#id ...") run on their own virtual
+    // threads and are answered as they finish; an untagged request first waits for all of them, so clients can order.
+    // With a server-wide limit on those threads, a tagged request over the limit runs right here like an untagged one.
     private static class ClientHandler implements Runnable {
 
+        private static final int MAX_IN_FLIGHT = 64;//tagged requests of one client running at once
+        private static final int OUTPUT_BUFFER = 64 * 1024;
+
         private final Socket client;
         private final FileSystemManager fs;
+        private final CommandProcessor processor;
+        private final Set<Socket> activeClients;
+        private final LongAdder errors;
+        private final Semaphore taggedSlots;//shared by all clients, null = no server-wide limit
+        private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+        private final ReplyBuffer reply = new ReplyBuffer();//reader thread only
+        private final BlockingQueue<ReplyBuffer> spareReplies = new ArrayBlockingQueue<>(MAX_IN_FLIGHT);//for tagged requests
+        private OutputStream out;//guarded by itself, tagged replies come from other threads
 
-        ClientHandler(Socket client, FileSystemManager fs) {
+        ClientHandler(Socket client, FileSystemManager fs, Set<Socket> activeClients, LongAdder errors, Semaphore taggedSlots) {
             this.client = client;
             this.fs = fs;
+            this.processor = new CommandProcessor(fs);
+            this.activeClients = activeClients;
+            this.errors = errors;
+            this.taggedSlots = taggedSlots;
         }
 
         @Override
         public void run() {
             try (
-                BufferedReader br = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
-                PrintWriter pw = new PrintWriter(client.getOutputStream(), true)
+                Socket s = client;
+                OutputStream o = new BufferedOutputStream(s.getOutputStream(), OUTPUT_BUFFER)
             ) {
-                String line;
-                while ((line = br.readLine()) != null) {    //Reads one line at a time from the client’s input stream
-                    line = line.trim();
-                    if (line.isEmpty()) continue;
-
-                    String[] parts = line.split(" ", 3);    //Splits the line by spaces into parts. Example: "CREATE myfile.txt" -> ["CREATE", "myfile.txt"]
-                    String cmd = parts[0].toUpperCase();    //Automatically assigns a string command to be used later in the swtich.
-
-                    try {
-                        switch (cmd) {
-                            case "CREATE" -> {
-                                // First checks if file name is too large, if it isn't it try to create the file by calling the fsManager which is located in FileSystemManager.java, and it catches any exception which is part of the function.
-                                if (parts.length < 2) { 
-                                    pw.println("ERROR: Missing filename"); break; 
-                                }
-                                String name = parts[1];
-                                if (name.length() > 11) { 
-                                    pw.println("ERROR: filename too large"); break; 
-                                }
-                                fs.createFile(name);
-                                pw.println("SUCCESS");
-                            }
-                            case "WRITE" -> {
-                                if (parts.length < 3) { 
-                                    pw.println("ERROR: Missing filename or content"); break; 
-                                }  
-                                String name = parts[1]; 
-                                String content = parts[2];//takes all data after name
-                                fs.writeFile(name, content.getBytes(StandardCharsets.UTF_8));
-                                pw.println("SUCCESS");
-                            }
-                            case "READ" -> {
-                                if (parts.length < 2) { pw.println("ERROR: Missing filename"); break; }
-                                byte[] data = fs.readFile(parts[1]);
-                                pw.println(new String(data, StandardCharsets.UTF_8));
-                            }
-                            case "DELETE" -> {
-                                if (parts.length < 2) { pw.println("ERROR: Missing filename"); break; }
-                                fs.deleteFile(parts[1]);
-                                pw.println("SUCCESS");
-                            }
-                            case "LIST" -> {
-                                List<String> out = fs.listFiles();
-                                pw.println(String.join(" ", out));
-                            }
-                            case "DISCONNECT" -> {
-                                pw.println("BYE");
-                                return;
-                            }
-                            default -> pw.println("ERROR: Unknown command");
-                        }
-                    } catch (Exception e) {
-                        pw.println("ERROR: " + e.getMessage());
+                out = o;
+                try {
+                    serve(new LineReader(s.getInputStream(), CommandProcessor.MAX_LINE_LENGTH), s);
+                } catch (LineReader.LineTooLongException e) {
+                    awaitTagged();//earlier replies go first, as on the NIO engine
+                    synchronized (out) {
+                        out.write(CommandProcessor.LINE_TOO_LONG);
+                    }
+                } finally {
+                    awaitTagged();//replies of running tagged requests still go out before the socket closes
+                    synchronized (out) {
+                        out.flush();
                     }
                 }
-            } catch (IOException ignored) {}
+            } catch (IOException e) {
+                errors.increment();
+                System.err.println("Client " + client.getRemoteSocketAddress() + ": " + e.getMessage());
+            } finally {
+                activeClients.remove(client);
+            }
+        }
+
+        private void serve(LineReader lines, Socket s) throws IOException {
+            while (lines.next()) {    //Reads one line at a time from the client’s input stream
+                byte[] b = lines.buffer();
+                int from = lines.start();
+                int to = lines.end();
+                int tagEnd = CommandProcessor.tagEnd(b, from, to);
+                boolean tagged = tagEnd > from;
+                int batch = CommandProcessor.batchSize(b, tagEnd, to);
+
+                if (!tagged && CommandProcessor.isOnly(b, from, to, "BINARY")) {
+                    awaitTagged();
+                    synchronized (out) {
+                        out.write(SUCCESS_LINE);
+                        out.flush();
+                    }
+                    //binary frames are read field by field, so they need a buffer again
+                    new BinaryProtocol(fs).serve(new BufferedInputStream(lines.remaining()), s.getOutputStream());
+                    return;
+                } else if (batch > 0) {
+                    String tag = tagged ? new String(b, from, tagEnd - from, StandardCharsets.UTF_8) : null;
+                    List<byte[]> batchLines = new ArrayList<>(batch);
+                    for (int i = 0; i < batch; i++) {
+                        if (!lines.next()) return;
+                        batchLines.add(Arrays.copyOfRange(lines.buffer(), lines.start(), lines.end()));
+                    }
+                    awaitTagged();
+                    processor.processBatch(batchLines, tag, reply);
+                } else if (batch == -2) {
+                    CommandProcessor.badBatch(b, from, tagEnd, reply);
+                } else if (tagged && !CommandProcessor.isOnly(b, tagEnd, to, "DISCONNECT")) {
+                    inFlight.acquireUninterruptibly();
+                    if (taggedSlots != null && !taggedSlots.tryAcquire()) {
+                        inFlight.release();
+                        processor.process(b, from, to, reply);//server is at its limit, keep this one on our worker
+                    } else {
+                        byte[] request = Arrays.copyOfRange(b, from, to);//the reader moves on before the request runs
+                        Thread.startVirtualThread(() -> runTagged(request));
+                    }
+                } else {
+                    awaitTagged();
+                    if (processor.process(b, from, to, reply) == CommandProcessor.DISCONNECT) {
+                        send(reply);
+                        return;
+                    }
+                }
+
+                send(reply);
+                if (!lines.hasInput()) {
+                    synchronized (out) {
+                        out.flush();//pipelined requests get their replies in one write once the input is drained
+                    }
+                }
+            }
+        }
+
+        private void runTagged(byte[] request) {
+            ReplyBuffer r = spareReplies.poll();
+            if (r == null) r = new ReplyBuffer();
+            try {
+                processor.process(request, 0, request.length, r);
+                synchronized (out) {
+                    r.writeTo(out);
+                    out.flush();//the reader thread may be blocked waiting for input
+                }
+            } catch (IOException e) {
+                //the reader thread sees the broken connection too and reports it
+            } finally {
+                r.clear();
+                spareReplies.offer(r);
+                if (taggedSlots != null) {
+                    taggedSlots.release();
+                }
+                inFlight.release();
+            }
+        }
+
+        // Hands the reply to the output buffer, it goes out with the next flush
+        private void send(ReplyBuffer r) throws IOException {
+            if (r.size() > 0) {
+                synchronized (out) {
+                    r.writeTo(out);
+                }
+                r.clear();
+            }
+        }
+
+        private void awaitTagged() {
+            inFlight.acquireUninterruptibly(MAX_IN_FLIGHT);
+            inFlight.release(MAX_IN_FLIGHT);
         }
     }
 }
@@ -0,0 +1,106 @@
+package ca.concordia.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+
+// Reads '\n' terminated lines from a socket into one reusable buffer: a line is only a range of buffer(), valid until
+// the next call. Takes the place of a BufferedInputStream, so nothing is read past what the caller consumed.
+class LineReader {
+
+    // A line grew past the limit, the buffer stops growing and the connection is beyond saving
+    static class LineTooLongException extends IOException {
+        LineTooLongException(int limit) {
+            super("line longer than " + limit + " bytes");
+        }
+    }
+
+    private static final int INITIAL_SIZE = 8192;
+    private static final int KEEP_SIZE = 1024 * 1024;//shrink back after a very long line
+
+    private final InputStream in;
+    private final int maxLineLength;//without the '\n'
+    private byte[] buf = new byte[INITIAL_SIZE];
+    private int pos;//next unread byte
+    private int limit;//end of the bytes read from in
+    private int lineStart;
+    private int lineEnd;
+
+    LineReader(InputStream in, int maxLineLength) {
+        this.in = in;
+        this.maxLineLength = maxLineLength;
+    }
+
+    // Reads the next line, false at end of stream. A last line without '\n' still counts.
+    // Throws LineTooLongException once more than maxLineLength bytes arrived without a '\n'.
+    boolean next() throws IOException {
+        if (buf.length > KEEP_SIZE && limit - pos < INITIAL_SIZE) {
+            buf = Arrays.copyOfRange(buf, pos, pos + INITIAL_SIZE);
+            limit -= pos;
+            pos = 0;
+        }
+        int scanned = pos;
+        while (true) {
+            for (int i = scanned; i < limit; i++) {
+                if (buf[i] == '\n') {
+                    lineStart = pos;
+                    lineEnd = i > pos && buf[i - 1] == '\r' ? i - 1 : i;
+                    pos = i + 1;
+                    return true;
+                }
+            }
+            if (limit - pos > maxLineLength) {
+                throw new LineTooLongException(maxLineLength);
+            }
+            scanned = limit - pos;//relative, the buffer may move
+            if (!fill()) {
+                if (limit == pos) return false;
+                lineStart = pos;
+                lineEnd = limit;
+                pos = limit;
+                return true;
+            }
+            scanned += pos;
+        }
+    }
+
+    byte[] buffer() {
+        return buf;
+    }
+
+    int start() {
+        return lineStart;
+    }
+
+    int end() {
+        return lineEnd;
+    }
+
+    // True if a complete or partial request is already waiting, so a reply can wait for the next flush
+    boolean hasInput() throws IOException {
+        return pos < limit || in.available() > 0;
+    }
+
+    // Bytes not consumed yet followed by the rest of the stream, for switching to another protocol
+    InputStream remaining() {
+        if (pos == limit) return in;
+        return new SequenceInputStream(new ByteArrayInputStream(buf, pos, limit - pos), in);
+    }
+
+    private boolean fill() throws IOException {
+        if (pos > 0) {//move the partial line to the front
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        if (limit == buf.length) {
+            buf = Arrays.copyOf(buf, (int) Math.min(buf.length * 2L, maxLineLength + 1L));//one more byte shows the line is too long
+        }
+        int n = in.read(buf, limit, buf.length - limit);
+        if (n <= 0) return false;
+        limit += n;
+        return true;
+    }
+}
@@ -0,0 +1,479 @@
+package ca.concordia.server;
+
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.metrics.Metrics;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Non-blocking alternative to FileServer: a few selector threads own all connections,
+// so an idle client costs a registered key and a small line buffer instead of a parked thread.
+// The selector threads only move bytes, the requests of a read run on a virtual thread (one per busy connection)
+public class NioFileServer {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final int REPLY_CHUNK = 256 * 1024;//a worker hands back its replies once they pass this size
+
+    private final FileSystemManager fsManager;
+    private final int port;
+    private final EventLoop[] loops;
+    private int backlog = 1024;
+
+    private volatile ServerSocketChannel serverChannel;
+    private volatile boolean running;
+    private final LongAdder accepted;
+    private final LongAdder open = new LongAdder();//connections registered with a loop and not yet closed
+    private final LongAdder clientErrors;
+
+    public NioFileServer(int port, String fileSystemName, long totalSize) throws IOException {
+        this(port, new FileSystemManager(fileSystemName, totalSize), defaultLoopCount());
+    }
+
+    public NioFileServer(int port, FileSystemManager fsManager, int eventLoops) {
+        if (eventLoops <= 0) {
+            throw new IllegalArgumentException("Event loop count must be positive.");
+        }
+        this.fsManager = fsManager;
+        this.port = port;
+        this.loops = new EventLoop[eventLoops];
+        Metrics metrics = fsManager.getMetrics();
+        accepted = metrics.counter("server.connections.accepted");
+        clientErrors = metrics.counter("server.connections.errors");
+        metrics.gauge("server.connections.active", open::sum);
+    }
+
+    public static int defaultLoopCount() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    }
+
+    public void setBacklog(int backlog) {
+        if (backlog <= 0) {
+            throw new IllegalArgumentException("Backlog must be positive.");
+        }
+        this.backlog = backlog;
+    }
+
+    public void start() {
+        try (ServerSocketChannel ssc = ServerSocketChannel.open()) {
+            ssc.bind(new InetSocketAddress(port), backlog);
+            serverChannel = ssc;
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop(new CommandProcessor(fsManager), open, clientErrors);
+                Thread t = new Thread(loops[i], "nio-loop-" + i);
+                loops[i].thread = t;
+                t.start();
+            }
+            running = true;
+            System.out.println("Server started. Listening on port " + port + " (NIO, " + loops.length + " event loops)");
+
+            int next = 0;
+            while (running) {
+                SocketChannel client;
+                try {
+                    client = ssc.accept();//blocking accept on this thread, the loops only do I/O
+                } catch (ClosedChannelException e) {
+                    break;//closed by stop()
+                }
+                accepted.increment();
+                client.configureBlocking(false);
+                client.socket().setTcpNoDelay(true);
+                loops[next].register(client);
+                next = (next + 1) % loops.length;
+            }
+        } catch (IOException e) {
+            System.err.println("Server error: " + e.getMessage());
+        } finally {
+            running = false;
+        }
+    }
+
+    // Stops accepting, answers every complete request already received, flushes replies, then closes all clients
+    public void stop(long timeoutMillis) {
+        running = false;
+        ServerSocketChannel ssc = serverChannel;
+        if (ssc != null) {
+            try {
+                ssc.close();
+            } catch (IOException ignored) {}
+        }
+        for (EventLoop loop : loops) {
+            if (loop != null) loop.shutdown();
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        for (EventLoop loop : loops) {
+            if (loop == null) continue;
+            try {
+                long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                loop.thread.join(Math.max(1, left));
+                if (loop.thread.isAlive()) {
+                    loop.forceClose();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // A complete request: a command line, a BATCH line with its command lines, or a line that was too long (line null).
+    // batch is what CommandProcessor.batchSize() said about line.
+    private record Request(byte[] line, int tagEnd, int batch, List<byte[]> batchLines) {
+    }
+
+    // Per-connection state, touched by the owning loop thread, and while busy only by the worker running its requests
+    private static class Connection {
+        final SocketChannel channel;
+        byte[] line = new byte[256];//bytes of the line being assembled
+        int lineLength;
+        boolean overflow;//current line exceeded CommandProcessor.MAX_LINE_LENGTH
+        final Queue<ByteBuffer> pending = new ArrayDeque<>();//reply bytes the socket has not accepted yet
+        boolean closeAfterFlush;
+        Request batch;//BATCH whose lines are still being received, null otherwise
+        int batchRemaining;
+        final List<Request> requests = new ArrayList<>();//complete requests of the last read, in order
+        int nextRequest;//requests before this one have run
+        boolean busy;//a worker owns requests and reply, the key is not reading
+        ReplyBuffer reply;//replies of the worker, from the loop's spares while busy
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void append(ByteBuffer src, int from, int to) {
+            int n = to - from;
+            if (overflow) return;
+            if (lineLength + n > CommandProcessor.MAX_LINE_LENGTH) {
+                overflow = true;
+                return;
+            }
+            if (lineLength + n > line.length) {
+                line = Arrays.copyOf(line, Math.min(CommandProcessor.MAX_LINE_LENGTH, Math.max(line.length * 2, lineLength + n)));
+            }
+            src.get(from, line, lineLength, n);//absolute bulk get, does not move the buffer position
+            lineLength += n;
+        }
+    }
+
+    private static class EventLoop implements Runnable {
+
+        private final Selector selector;
+        private final CommandProcessor processor;
+        private final Queue<SocketChannel> incoming = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);//shared by all connections of this loop
+        private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        private final Queue<ReplyBuffer> spareReplies = new ArrayDeque<>();//only used by the loop thread
+        private final Queue<SelectionKey> done = new ConcurrentLinkedQueue<>();//connections whose worker has finished
+        private final LongAdder open;
+        private final LongAdder errors;
+        private volatile boolean stopping;
+        Thread thread;
+
+        EventLoop(CommandProcessor processor, LongAdder open, LongAdder errors) throws IOException {
+            this.selector = Selector.open();
+            this.processor = processor;
+            this.open = open;
+            this.errors = errors;
+        }
+
+        void register(SocketChannel channel) {
+            incoming.add(channel);
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            stopping = true;
+            selector.wakeup();
+        }
+
+        void forceClose() {
+            try {
+                selector.close();//keys are cancelled, the loop thread exits on ClosedSelectorException
+            } catch (IOException ignored) {}
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    registerIncoming();
+                    if (stopping && drained()) break;
+                    selector.select(stopping ? 50 : 0);
+                    finishDone();
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Connection c = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isWritable()) {
+                                flush(key, c);
+                            }
+                            if (key.isValid() && key.isReadable() && !stopping) {
+                                read(key, c);
+                            }
+                        } catch (IOException e) {
+                            errors.increment();
+                            System.err.println("Client " + ((SocketChannel) key.channel()).socket().getRemoteSocketAddress() + ": " + e.getMessage());
+                            close(key);
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (!stopping) System.err.println("Event loop error: " + e.getMessage());
+            } finally {
+                for (SelectionKey key : selector.isOpen() ? selector.keys() : Set.<SelectionKey>of()) {
+                    close(key);
+                }
+                for (SocketChannel ch; (ch = incoming.poll()) != null; ) {
+                    try {
+                        ch.close();
+                    } catch (IOException ignored) {}
+                }
+                forceClose();
+            }
+        }
+
+        private void registerIncoming() {
+            for (SocketChannel ch; (ch = incoming.poll()) != null; ) {
+                if (stopping) {
+                    try {
+                        ch.close();
+                    } catch (IOException ignored) {}
+                    continue;
+                }
+                try {
+                    ch.register(selector, SelectionKey.OP_READ, new Connection(ch));
+                    open.increment();
+                } catch (IOException e) {
+                    try {
+                        ch.close();
+                    } catch (IOException ignored) {}
+                }
+            }
+        }
+
+        // true once no connection has a request running or unsent reply bytes
+        private boolean drained() {
+            for (SelectionKey key : selector.keys()) {
+                Connection c = (Connection) key.attachment();
+                if (c.busy || key.isValid() && !c.pending.isEmpty()) return false;
+            }
+            return done.isEmpty();
+        }
+
+        private void read(SelectionKey key, Connection c) throws IOException {
+            readBuffer.clear();
+            int n = c.channel.read(readBuffer);
+            if (n < 0) {
+                close(key);
+                return;
+            }
+            readBuffer.flip();
+            int start = readBuffer.position();
+            int end = readBuffer.limit();
+            for (int i = start; i < end; i++) {
+                if (readBuffer.get(i) != '\n') continue;
+                c.append(readBuffer, start, i);
+                start = i + 1;
+                takeLine(c);
+                if (c.closeAfterFlush) break;
+            }
+            if (!c.closeAfterFlush) {
+                c.append(readBuffer, start, end);//partial line, completed by a later read
+                if (c.overflow) {
+                    takeLine(c);//too long already, no need to wait for its end
+                }
+            }
+            if (!c.requests.isEmpty()) {
+                dispatch(key, c);
+            }
+        }
+
+        // Requests of a connection run one read at a time, so tagged replies come back in request order.
+        // The key stops reading until all of them ran and the replies are out.
+        private void dispatch(SelectionKey key, Connection c) {
+            c.busy = true;
+            c.reply = spareReplies.poll();
+            if (c.reply == null) c.reply = new ReplyBuffer();
+            key.interestOps(0);
+            Thread.startVirtualThread(() -> runRequests(key, c));
+        }
+
+        // Once the replies so far are out, runs the rest of the requests or goes back to reading
+        private void resume(SelectionKey key, Connection c) {
+            if (c.requests.isEmpty()) {
+                key.interestOps(SelectionKey.OP_READ);
+            } else {
+                dispatch(key, c);
+            }
+        }
+
+        // Adds the line in c.line to c.requests, or to the BATCH being received
+        private void takeLine(Connection c) {
+            if (c.overflow) {
+                c.lineLength = 0;
+                c.overflow = false;
+                c.closeAfterFlush = true;
+                c.requests.add(new Request(null, 0, -1, null));
+                return;
+            }
+            byte[] b = c.line;
+            int len = c.lineLength;
+            if (len > 0 && b[len - 1] == '\r') len--;
+            c.lineLength = 0;
+            byte[] line = Arrays.copyOf(b, len);//c.line is reused for the next line
+
+            if (c.batch != null) {
+                c.batch.batchLines().add(line);
+                if (--c.batchRemaining == 0) {
+                    c.requests.add(c.batch);
+                    c.batch = null;
+                }
+                return;
+            }
+            int tagEnd = CommandProcessor.tagEnd(line, 0, len);
+            int batch = CommandProcessor.batchSize(line, tagEnd, len);
+            if (batch > 0) {
+                c.batch = new Request(line, tagEnd, batch, new ArrayList<>(batch));
+                c.batchRemaining = batch;
+            } else {
+                c.requests.add(new Request(line, tagEnd, batch, null));
+            }
+        }
+
+        // Worker side: runs the requests of a read into c.reply, up to about REPLY_CHUNK bytes of replies,
+        // then hands the connection back to the loop
+        private void runRequests(SelectionKey key, Connection c) {
+            boolean close = false;
+            try {
+                while (c.nextRequest < c.requests.size() && c.reply.size() < REPLY_CHUNK) {
+                    if (!run(c.requests.get(c.nextRequest++), c.reply)) {
+                        close = true;
+                        break;//nothing after DISCONNECT runs
+                    }
+                }
+            } catch (RuntimeException e) {
+                errors.increment();
+                System.err.println("Client " + c.channel.socket().getRemoteSocketAddress() + ": " + e);
+                close = true;
+            } finally {
+                if (close) c.closeAfterFlush = true;
+                if (close || c.nextRequest == c.requests.size()) {
+                    c.requests.clear();
+                    c.nextRequest = 0;
+                }
+                done.add(key);
+                selector.wakeup();
+            }
+        }
+
+        // Appends the reply to r, false if the connection is to be closed after it
+        private boolean run(Request r, ReplyBuffer reply) {
+            byte[] b = r.line();
+            if (b == null) {
+                reply.append(CommandProcessor.LINE_TOO_LONG);
+                return false;
+            } else if (r.batch() > 0) {
+                String tag = r.tagEnd() > 0 ? new String(b, 0, r.tagEnd(), StandardCharsets.UTF_8) : null;
+                processor.processBatch(r.batchLines(), tag, reply);
+                return true;
+            } else if (r.batch() == -2) {
+                CommandProcessor.badBatch(b, 0, r.tagEnd(), reply);
+                return true;
+            }
+            return processor.process(b, 0, b.length, reply) != CommandProcessor.DISCONNECT;
+        }
+
+        // Loop side: sends the replies of every finished worker and moves its connection on
+        private void finishDone() {
+            for (SelectionKey key; (key = done.poll()) != null; ) {
+                Connection c = (Connection) key.attachment();
+                ReplyBuffer reply = c.reply;
+                c.reply = null;
+                c.busy = false;
+                try {
+                    if (key.isValid()) {
+                        send(key, c, reply);//the replies to everything in one read go out in one write
+                        if (key.isValid() && c.pending.isEmpty()) {
+                            resume(key, c);
+                        }
+                    }
+                } catch (IOException e) {
+                    errors.increment();
+                    System.err.println("Client " + c.channel.socket().getRemoteSocketAddress() + ": " + e.getMessage());
+                    close(key);
+                } finally {
+                    reply.clear();
+                    spareReplies.offer(reply);
+                }
+            }
+        }
+
+        // Writes out the reply buffer, what the socket does not take waits in c.pending
+        private void send(SelectionKey key, Connection c, ReplyBuffer reply) throws IOException {
+            int size = reply.size();
+            byte[] bytes = reply.array();
+            int off = 0;
+            if (c.pending.isEmpty()) {//otherwise keep ordering behind earlier replies
+                while (off < size) {
+                    writeBuffer.clear();
+                    int chunk = Math.min(writeBuffer.capacity(), size - off);
+                    writeBuffer.put(bytes, off, chunk).flip();
+                    int written = c.channel.write(writeBuffer);
+                    off += written;
+                    if (written < chunk) break;//socket buffer full
+                }
+            }
+            if (off < size) {
+                c.pending.add(ByteBuffer.wrap(Arrays.copyOfRange(bytes, off, size)));
+                key.interestOps(SelectionKey.OP_WRITE);//stop reading until the client catches up
+            } else if (c.closeAfterFlush && c.pending.isEmpty()) {
+                close(key);
+            }
+        }
+
+        private void flush(SelectionKey key, Connection c) throws IOException {
+            ByteBuffer buf;
+            while ((buf = c.pending.peek()) != null) {
+                c.channel.write(buf);
+                if (buf.hasRemaining()) return;
+                c.pending.poll();
+            }
+            if (c.closeAfterFlush) {
+                close(key);
+            } else {
+                resume(key, c);
+            }
+        }
+
+        private void close(SelectionKey key) {
+            key.cancel();
+            if (!key.channel().isOpen()) return;//already closed, a cancelled key can still show up once more
+            open.decrement();
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+                errors.increment();
+            }
+        }
+    }
+}
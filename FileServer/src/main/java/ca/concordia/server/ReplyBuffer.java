@@ -0,0 +1,105 @@
+package ca.concordia.server;
+
+import ca.concordia.filesystem.FileSystemManager;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Reply bytes of one or more requests, kept by a connection (or event loop) and reused so encoding a reply does not
+// allocate. File contents are read straight into it. Not thread safe.
+class ReplyBuffer implements FileSystemManager.ReadTarget {
+
+    private static final int INITIAL_SIZE = 4096;
+    private static final int KEEP_SIZE = 1024 * 1024;//a buffer grown past this by one big reply is dropped on clear()
+
+    private byte[] buf = new byte[INITIAL_SIZE];
+    private int size;
+
+    int size() {
+        return size;
+    }
+
+    @Override
+    public byte[] array() {
+        return buf;
+    }
+
+    void clear() {
+        size = 0;
+        if (buf.length > KEEP_SIZE) {
+            buf = new byte[INITIAL_SIZE];
+        }
+    }
+
+    // Drops everything after mark, see size()
+    void truncate(int mark) {
+        size = mark;
+    }
+
+    @Override
+    public int reserve(int length) {
+        ensure(length);
+        int at = size;
+        size += length;
+        return at;
+    }
+
+    ReplyBuffer append(byte b) {
+        ensure(1);
+        buf[size++] = b;
+        return this;
+    }
+
+    ReplyBuffer append(byte[] b, int off, int len) {
+        ensure(len);
+        System.arraycopy(b, off, buf, size, len);
+        size += len;
+        return this;
+    }
+
+    ReplyBuffer append(byte[] b) {
+        return append(b, 0, b.length);
+    }
+
+    // ASCII is copied char by char, anything else goes through the UTF-8 encoder
+    ReplyBuffer append(String s) {
+        int n = s.length();
+        ensure(n);
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                return append(s.getBytes(StandardCharsets.UTF_8));//overwrites what was copied so far
+            }
+            buf[size + i] = (byte) c;
+        }
+        size += n;
+        return this;
+    }
+
+    boolean startsWith(int from, byte[] prefix) {
+        if (size - from < prefix.length) return false;
+        return Arrays.equals(buf, from, from + prefix.length, prefix, 0, prefix.length);
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        out.write(buf, 0, size);
+    }
+
+    @Override
+    public String toString() {
+        return new String(buf, 0, size, StandardCharsets.UTF_8);
+    }
+
+    private void ensure(int more) {
+        if (size + more > buf.length) {
+            long wanted = Math.max((long) buf.length * 2, (long) size + more);
+            if (wanted > Integer.MAX_VALUE - 8) {
+                if ((long) size + more > Integer.MAX_VALUE - 8) throw new OutOfMemoryError("Reply too large");
+                wanted = Integer.MAX_VALUE - 8;
+            }
+            buf = Arrays.copyOf(buf, (int) wanted);
+        }
+    }
+}
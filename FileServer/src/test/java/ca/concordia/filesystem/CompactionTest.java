@@ -0,0 +1,157 @@
+package ca.concordia.filesystem;
+
+import ca.concordia.filesystem.device.BlockDevice;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CompactionTest {
+
+    private static final int BLOCK_SIZE = 128;
+    private static final int WRITERS = 4;
+    private static final int FILES_PER_WRITER = 3;
+    private static final int ROUNDS = 300;
+
+    @TempDir
+    Path dir;
+
+    private FileSystemManager fs;
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (fs != null) {
+            fs.close();
+        }
+    }
+
+    @Test
+    void concurrentWritesSurviveCompaction() throws Exception {
+        BlockDevice device = BlockDevice.open(dir.resolve("volume").toString(), 128 * 1024, BlockDevice.Type.CHANNEL);
+        fs = new FileSystemManager(device, BLOCK_SIZE, 256);
+        int empty = fs.getFreeBlockCount();
+        int fillers = fragment();
+
+        byte[][] expected = new byte[WRITERS * FILES_PER_WRITER][];
+        for (int f = 0; f < expected.length; f++) {
+            expected[f] = fs.readFile("g" + f);
+        }
+        AtomicBoolean writing = new AtomicBoolean(true);
+        AtomicInteger moved = new AtomicInteger();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread compactor = new Thread(() -> {
+            try {
+                while (writing.get()) {
+                    moved.addAndGet(fs.compact());
+                }
+            } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+            }
+        });
+        compactor.start();
+        List<Thread> writers = new ArrayList<>();
+        for (int w = 0; w < WRITERS; w++) {
+            int first = w * FILES_PER_WRITER;
+            Random random = new Random(w);
+            Thread t = new Thread(() -> {
+                try {
+                    for (int round = 0; round < ROUNDS; round++) {
+                        int f = first + random.nextInt(FILES_PER_WRITER);
+                        expected[f] = change("g" + f, expected[f], random);
+                        assertArrayEquals(expected[f], fs.readFile("g" + f));
+                    }
+                } catch (Throwable t1) {
+                    failure.compareAndSet(null, t1);
+                }
+            });
+            writers.add(t);
+            t.start();
+        }
+        for (Thread t : writers) {
+            t.join();
+        }
+        writing.set(false);
+        compactor.join();
+        assertNull(failure.get());
+        assertTrue(moved.get() > 0);
+
+        fs.compact();
+        long used = (long) fillers * 4;
+        for (int f = 0; f < expected.length; f++) {
+            assertArrayEquals(expected[f], fs.readFile("g" + f));
+            used += (expected[f].length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        }
+        assertEquals(empty - used, fs.getFreeBlockCount());
+    }
+
+    // Fills the volume with 4-block files, frees every other one and writes the g files into the holes, so each is
+    // split over several runs. Then frees a stretch at the start for them to move into. Returns the fillers left.
+    private int fragment() throws Exception {
+        byte[] filler = new byte[4 * BLOCK_SIZE];
+        int count = 0;
+        while (fs.getFreeBlockCount() >= 4) {
+            fs.createFile("h" + count);
+            fs.writeFile("h" + count++, filler);
+        }
+        for (int i = 0; i < count; i += 2) {
+            fs.deleteFile("h" + i);
+        }
+        Random random = new Random(42);
+        for (int f = 0; f < WRITERS * FILES_PER_WRITER; f++) {
+            fs.createFile("g" + f);
+            fs.writeFile("g" + f, content(random, 3 * 4 * BLOCK_SIZE));
+        }
+        int left = count / 2;
+        for (int i = 1; i < count / 3; i += 2) {
+            fs.deleteFile("h" + i);
+            left--;
+        }
+        return left;
+    }
+
+    private byte[] change(String name, byte[] old, Random random) throws Exception {
+        switch (random.nextInt(3)) {
+            case 0 -> {
+                byte[] data = content(random, 200 + random.nextInt(2000));
+                fs.writeFile(name, data);
+                return data;
+            }
+            case 1 -> {
+                byte[] tail = content(random, 1 + random.nextInt(300));
+                fs.appendFile(name, tail);
+                byte[] grown = Arrays.copyOf(old, old.length + tail.length);
+                System.arraycopy(tail, 0, grown, old.length, tail.length);
+                return grown;
+            }
+            default -> {
+                byte[] patch = content(random, 1 + random.nextInt(300));
+                int offset = random.nextInt(old.length + 1);
+                fs.writeFile(name, offset, patch);
+                byte[] changed = Arrays.copyOf(old, Math.max(old.length, offset + patch.length));
+                System.arraycopy(patch, 0, changed, offset, patch.length);
+                return changed;
+            }
+        }
+    }
+
+    private static byte[] content(Random random, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) ('a' + random.nextInt(26));
+        }
+        return data;
+    }
+}
@@ -0,0 +1,116 @@
+package ca.concordia.filesystem;
+
+import ca.concordia.filesystem.device.BlockDevice;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class DedupTest {
+
+    private static final int BLOCK_SIZE = 128;
+    private static final byte[] CONTENT = "0123456789".repeat(100).getBytes(StandardCharsets.US_ASCII);//8 blocks
+    private static final byte[] OTHER = "abcdefghij".repeat(100).getBytes(StandardCharsets.US_ASCII);
+    private static final int BLOCKS = 8;
+
+    @TempDir
+    Path dir;
+
+    private FileSystemManager fs;
+    private int empty;//free blocks of the formatted volume
+
+    @BeforeEach
+    void setUp() throws IOException {
+        fs = mount();
+        empty = fs.getFreeBlockCount();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (fs != null) {
+            fs.close();
+        }
+    }
+
+    @Test
+    void equalFilesShareBlocksUntilTheLastIsDeleted() throws Exception {
+        write("a", CONTENT);
+        write("b", CONTENT);
+        write("c", CONTENT);
+        assertEquals(empty - BLOCKS, fs.getFreeBlockCount());
+
+        fs.deleteFile("a");
+        fs.deleteFile("c");
+        assertEquals(empty - BLOCKS, fs.getFreeBlockCount());
+        assertArrayEquals(CONTENT, fs.readFile("b"));
+
+        fs.deleteFile("b");
+        assertEquals(empty, fs.getFreeBlockCount());
+    }
+
+    @Test
+    void rewritingASharedFileLeavesTheOthersAlone() throws Exception {
+        write("a", CONTENT);
+        write("b", CONTENT);
+        fs.writeFile("a", OTHER);
+        assertEquals(empty - 2 * BLOCKS, fs.getFreeBlockCount());
+        assertArrayEquals(OTHER, fs.readFile("a"));
+        assertArrayEquals(CONTENT, fs.readFile("b"));
+
+        fs.writeFile("a", CONTENT);//shares again, OTHER's blocks go back
+        assertEquals(empty - BLOCKS, fs.getFreeBlockCount());
+        fs.deleteFile("b");
+        assertArrayEquals(CONTENT, fs.readFile("a"));
+        assertEquals(empty - BLOCKS, fs.getFreeBlockCount());
+    }
+
+    @Test
+    void changingASharedFileInPlaceCopiesItOut() throws Exception {
+        write("a", CONTENT);
+        write("b", CONTENT);
+        fs.appendFile("a", "!".getBytes(StandardCharsets.US_ASCII));
+        fs.writeFile("b", 0, "X".getBytes(StandardCharsets.US_ASCII));
+        assertEquals(CONTENT.length + 1, fs.readFile("a").length);
+        assertEquals('X', fs.readFile("b")[0]);
+        assertArrayEquals(CONTENT, fs.readFile("a", 0, CONTENT.length));
+
+        fs.deleteFile("a");
+        fs.deleteFile("b");
+        assertEquals(empty, fs.getFreeBlockCount());
+    }
+
+    @Test
+    void ownersAreCountedAgainAfterRemount() throws Exception {
+        write("a", CONTENT);
+        write("b", CONTENT);
+        fs.close();
+        fs = mount();
+
+        fs.deleteFile("a");
+        assertArrayEquals(CONTENT, fs.readFile("b"));
+        assertEquals(empty - BLOCKS, fs.getFreeBlockCount());
+        fs.writeFile("b", OTHER);
+        assertEquals(empty - BLOCKS, fs.getFreeBlockCount());
+        fs.deleteFile("b");
+        assertEquals(empty, fs.getFreeBlockCount());
+    }
+
+    private void write(String name, byte[] data) throws Exception {
+        fs.createFile(name);
+        fs.writeFile(name, data);
+    }
+
+    private FileSystemManager mount() throws IOException {
+        BlockDevice device = BlockDevice.open(dir.resolve("volume").toString(), 256 * 1024, BlockDevice.Type.CHANNEL);
+        FileSystemManager mounted = new FileSystemManager(device, BLOCK_SIZE, 64);
+        mounted.setDedup(true);
+        return mounted;
+    }
+}
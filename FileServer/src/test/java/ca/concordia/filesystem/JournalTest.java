@@ -0,0 +1,144 @@
+package ca.concordia.filesystem;
+
+import ca.concordia.filesystem.datastructures.FEntry;
+import ca.concordia.filesystem.datastructures.FNode;
+import ca.concordia.filesystem.datastructures.Superblock;
+import ca.concordia.filesystem.device.BlockDevice;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+// Crashes are simulated by abandoning a mounted volume without close(): nothing more is flushed and the journal is
+// not reset, so the next mount sees the log the way a killed server leaves it.
+class JournalTest {
+
+    private static final int BLOCK_SIZE = 128;
+    private static final long VOLUME_SIZE = 256 * 1024;
+    private static final int MAX_FILES = 512;
+
+    @TempDir
+    Path dir;
+
+    private final List<BlockDevice> devices = new ArrayList<>();
+    private FileSystemManager fs;
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (fs != null) {
+            fs.close();
+        }
+        forgetInstance();
+        for (BlockDevice d : devices) {
+            d.close();//the ones of crashed mounts, closing twice is harmless
+        }
+    }
+
+    @Test
+    void replaysCommittedMetadataWhenInPlaceWritesAreLost() throws Exception {
+        fs = mount(64 * 1024);
+        byte[] formatted = readMetadata();
+        fs.createFile("a");
+        fs.writeFile("a", bytes("first file"));
+        fs.createDirectory("d");
+        fs.createFile("d/b");
+        fs.writeFile("d/b", bytes("x".repeat(1000)));
+        crash();
+
+        writeMetadata(formatted);//as if none of the in-place writes reached the disk, only the log records did
+        fs = mount(64 * 1024);
+        assertEquals(List.of("a", "d"), fs.listFiles());
+        assertArrayEquals(bytes("first file"), fs.readFile("a"));
+        assertArrayEquals(bytes("x".repeat(1000)), fs.readFile("d/b"));
+    }
+
+    @Test
+    void oversizedBatchIsNotRolledBackByOlderRecords() throws Exception {
+        fs = mount(8 * 1024);//capacity of about 8 KB, 300 entries of 32 bytes do not fit in one record
+        fs.setScrubDeleted(false);
+        fs.createFile("a");
+        fs.writeFile("a", bytes("logged"));
+        fs.runBatch(() -> {
+            fs.deleteFile("a");//its slot goes to f0, replaying the records above would bring "a" back over it
+            for (int i = 0; i < 300; i++) {
+                fs.createFile("f" + i);
+            }
+        });
+        int free = fs.getFreeBlockCount();
+        crash();
+
+        fs = mount(8 * 1024);
+        List<String> names = fs.listFiles();
+        assertEquals(300, names.size());
+        assertFalse(names.contains("a"));
+        assertEquals(0, fs.readFile("f0").length);
+        assertEquals(free, fs.getFreeBlockCount());
+    }
+
+    @Test
+    void cleanCloseLeavesNothingToReplay() throws Exception {
+        fs = mount(64 * 1024);
+        fs.createFile("a");
+        fs.writeFile("a", bytes("kept"));
+        fs.close();
+        fs = null;
+
+        byte[] closed = readMetadata();
+        fs = mount(64 * 1024);
+        assertArrayEquals(bytes("kept"), fs.readFile("a"));
+        fs.close();
+        fs = null;
+        assertArrayEquals(closed, readMetadata());
+    }
+
+    private FileSystemManager mount(long journalSize) throws IOException {
+        BlockDevice device = BlockDevice.open(dir.resolve("volume").toString(), VOLUME_SIZE, BlockDevice.Type.CHANNEL);
+        BlockDevice journal = BlockDevice.open(dir.resolve("journal").toString(), journalSize, BlockDevice.Type.CHANNEL);
+        devices.add(device);
+        devices.add(journal);
+        return new FileSystemManager(device, journal, BLOCK_SIZE, MAX_FILES);
+    }
+
+    private void crash() throws Exception {
+        fs = null;
+        forgetInstance();
+    }
+
+    private static void forgetInstance() throws Exception {//lets the same JVM mount again without close()
+        Field instance = FileSystemManager.class.getDeclaredField("instance");
+        instance.setAccessible(true);
+        instance.set(null, null);
+    }
+
+    private int metadataLength() {//superblock and both tables
+        return Superblock.SIZE + MAX_FILES * FEntry.DISK_SIZE + (int) (VOLUME_SIZE / BLOCK_SIZE) * FNode.DISK_SIZE;
+    }
+
+    private byte[] readMetadata() throws IOException {
+        byte[] all = Files.readAllBytes(dir.resolve("volume"));
+        byte[] meta = new byte[metadataLength()];
+        System.arraycopy(all, 0, meta, 0, meta.length);
+        return meta;
+    }
+
+    private void writeMetadata(byte[] meta) throws IOException {
+        byte[] all = Files.readAllBytes(dir.resolve("volume"));
+        System.arraycopy(meta, 0, all, 0, meta.length);
+        Files.write(dir.resolve("volume"), all);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
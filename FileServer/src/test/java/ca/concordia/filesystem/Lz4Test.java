@@ -0,0 +1,104 @@
+package ca.concordia.filesystem;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class Lz4Test {
+
+    @Test
+    void roundTripsShortInputs() throws IOException {
+        for (int length = 0; length <= 40; length++) {//below and around the sizes where matching starts
+            byte[] data = new byte[length];
+            Arrays.fill(data, (byte) 'a');
+            assertRoundTrip(data);
+        }
+    }
+
+    @Test
+    void roundTripsRepetitiveAndRandomData() throws IOException {
+        Random random = new Random(1);
+        byte[] text = "the quick brown fox jumps over the lazy dog ".repeat(3000).getBytes(StandardCharsets.US_ASCII);
+        byte[] noise = new byte[100_000];
+        random.nextBytes(noise);
+        byte[] runs = new byte[200_000];//long matches and long literal runs, both past the 15 a token nibble holds
+        for (int i = 0; i < runs.length; ) {
+            int n = 1 + random.nextInt(2000);
+            byte value = random.nextBoolean() ? 0 : (byte) random.nextInt();
+            for (int j = 0; j < n && i < runs.length; j++, i++) {
+                runs[i] = value == 0 ? 0 : (byte) random.nextInt();
+            }
+        }
+        assertRoundTrip(text);
+        assertRoundTrip(noise);
+        assertRoundTrip(runs);
+        assertTrue(Lz4.compress(text, 0, text.length).length < text.length / 10);
+        assertTrue(Lz4.compress(noise, 0, noise.length).length <= Lz4.maxCompressedLength(noise.length));
+    }
+
+    @Test
+    void roundTripsSlices() throws IOException {
+        byte[] data = "header|abcabcabcabcabcabcabcabcabcabcabcabc|trailer".getBytes(StandardCharsets.US_ASCII);
+        byte[] packed = Lz4.compress(data, 7, 36);
+        byte[] framed = new byte[packed.length + 10];
+        System.arraycopy(packed, 0, framed, 3, packed.length);
+        byte[] out = new byte[40];
+        Lz4.decompress(framed, 3, packed.length, out, 2, 36);
+        assertArrayEquals(Arrays.copyOfRange(data, 7, 43), Arrays.copyOfRange(out, 2, 38));
+    }
+
+    @Test
+    void rejectsWrongLength() {
+        byte[] data = "abcdabcdabcdabcdabcdabcdabcdabcd".getBytes(StandardCharsets.US_ASCII);
+        byte[] packed = Lz4.compress(data, 0, data.length);
+        assertThrows(IOException.class, () -> Lz4.decompress(packed, 0, packed.length, new byte[data.length - 1], 0, data.length - 1));
+        assertThrows(IOException.class, () -> Lz4.decompress(packed, 0, packed.length, new byte[data.length + 1], 0, data.length + 1));
+    }
+
+    @Test
+    void rejectsBadOffsetsAndTruncation() {
+        byte[] zeroOffset = {0x10, 'a', 0, 0, 0x10, 'b'};//literal then a match 0 bytes back
+        byte[] beforeStart = {0x10, 'a', 2, 0, 0x10, 'b'};//match reaching before the first byte
+        byte[] shortLiterals = {(byte) 0x50, 'a', 'b'};//5 literals announced, 2 present
+        byte[] cutLength = {(byte) 0xF0};//length continues past the end
+        assertThrows(IOException.class, () -> Lz4.decompress(zeroOffset, 0, zeroOffset.length, new byte[10], 0, 6));
+        assertThrows(IOException.class, () -> Lz4.decompress(beforeStart, 0, beforeStart.length, new byte[10], 0, 6));
+        assertThrows(IOException.class, () -> Lz4.decompress(shortLiterals, 0, shortLiterals.length, new byte[10], 0, 5));
+        assertThrows(IOException.class, () -> Lz4.decompress(cutLength, 0, cutLength.length, new byte[100], 0, 20));
+    }
+
+    @Test
+    void corruptInputOnlyEverFailsWithIOException() {
+        Random random = new Random(2);
+        byte[] data = "some text, some more text, and some text again. ".repeat(50).getBytes(StandardCharsets.US_ASCII);
+        byte[] packed = Lz4.compress(data, 0, data.length);
+        byte[] out = new byte[data.length];
+        for (int i = 0; i < 20_000; i++) {
+            byte[] bad = packed.clone();
+            int flips = 1 + random.nextInt(3);
+            for (int f = 0; f < flips; f++) {
+                bad[random.nextInt(bad.length)] = (byte) random.nextInt();
+            }
+            int length = random.nextInt(4) == 0 ? random.nextInt(bad.length + 1) : bad.length;
+            try {
+                Lz4.decompress(bad, 0, length, out, 0, out.length);
+            } catch (IOException expected) {
+                //any other exception, or writing past out, fails the test
+            }
+        }
+    }
+
+    private static void assertRoundTrip(byte[] data) throws IOException {
+        byte[] packed = Lz4.compress(data, 0, data.length);
+        byte[] out = new byte[data.length];
+        Lz4.decompress(packed, 0, packed.length, out, 0, out.length);
+        assertArrayEquals(data, out);
+    }
+}
@@ -0,0 +1,137 @@
+package ca.concordia.filesystem;
+
+import ca.concordia.filesystem.datastructures.FEntry;
+import ca.concordia.filesystem.datastructures.Superblock;
+import ca.concordia.filesystem.device.BlockDevice;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+// Damage is done to the entry table of an unmounted volume, the next mount has to repair it
+class MountTest {
+
+    private static final int BLOCK_SIZE = 128;
+    private static final int MAX_FILES = 64;
+    private static final byte[] DATA = "x".repeat(1000).getBytes(StandardCharsets.US_ASCII);
+
+    @TempDir
+    Path dir;
+
+    private FileSystemManager fs;
+    private int freeWithRootFile;//free blocks once only "r" is left
+
+    @BeforeEach
+    void setUp() throws Exception {
+        fs = mount();
+        fs.createFile("r");
+        fs.writeFile("r", DATA);
+        freeWithRootFile = fs.getFreeBlockCount();
+        fs.createDirectory("d");
+        fs.createDirectory("d/e");
+        fs.createFile("d/f");
+        fs.writeFile("d/f", DATA);
+        fs.createFile("d/e/g");
+        fs.writeFile("d/e/g", DATA);
+        fs.close();
+        fs = null;
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (fs != null) {
+            fs.close();
+        }
+    }
+
+    @Test
+    void dropsEntriesWhoseDirectoryIsGone() throws Exception {
+        editEntry("d", entry -> entry.setFilename(""));
+        fs = mount();
+        assertRepaired();
+
+        fs.close();//the repair was written back, a second mount finds nothing to drop
+        fs = mount();
+        assertRepaired();
+    }
+
+    @Test
+    void dropsEntriesUnderAFile() throws Exception {
+        int file = slotOf("r");
+        editEntry("e", entry -> entry.setParent(file));
+        fs = mount();
+        assertEquals(List.of("f"), names("d"));
+        assertArrayEquals(DATA, fs.readFile("d/f"));
+        assertArrayEquals(DATA, fs.readFile("r"));
+        assertEquals(freeWithRootFile - (DATA.length + BLOCK_SIZE - 1) / BLOCK_SIZE, fs.getFreeBlockCount());
+    }
+
+    @Test
+    void dropsDirectoriesInACycle() throws Exception {
+        int sub = slotOf("e");
+        editEntry("d", entry -> entry.setParent(sub));
+        fs = mount();
+        assertRepaired();
+    }
+
+    private void assertRepaired() throws Exception {
+        assertEquals(List.of("r"), fs.listFiles());
+        assertArrayEquals(DATA, fs.readFile("r"));
+        assertEquals(freeWithRootFile, fs.getFreeBlockCount());
+        assertThrows(Exception.class, () -> fs.readFile("d/f"));
+        fs.createDirectory("d");//the slots and the names are free again
+        fs.createFile("d/f");
+        assertEquals(0, fs.readFile("d/f").length);
+        fs.deleteFile("d/f");
+        fs.deleteFile("d");
+    }
+
+    private List<String> names(String directory) throws Exception {
+        List<String> names = new ArrayList<>();
+        fs.listDirectory(directory, null, Integer.MAX_VALUE, (name, isDirectory) -> names.add(name));
+        return names;
+    }
+
+    private FileSystemManager mount() throws IOException {
+        BlockDevice device = BlockDevice.open(dir.resolve("volume").toString(), 64 * 1024, BlockDevice.Type.CHANNEL);
+        return new FileSystemManager(device, BLOCK_SIZE, MAX_FILES);
+    }
+
+    private int slotOf(String name) throws IOException {
+        ByteBuffer table = ByteBuffer.wrap(Files.readAllBytes(dir.resolve("volume")));
+        for (int slot = 0; slot < MAX_FILES; slot++) {
+            FEntry entry = new FEntry(slot);
+            table.position(Superblock.SIZE + slot * FEntry.DISK_SIZE);
+            entry.readFrom(table);
+            if (entry.getFilename().equals(name)) return slot;
+        }
+        throw new IllegalArgumentException("No entry named " + name);
+    }
+
+    // Rewrites the slot of the entry with the given name (names are unique in these tests) on disk
+    private void editEntry(String name, Consumer<FEntry> change) throws IOException {
+        byte[] volume = Files.readAllBytes(dir.resolve("volume"));
+        ByteBuffer table = ByteBuffer.wrap(volume);
+        int at = Superblock.SIZE + slotOf(name) * FEntry.DISK_SIZE;
+        FEntry entry = new FEntry();
+        table.position(at);
+        entry.readFrom(table);
+        change.accept(entry);
+        table.position(at);
+        entry.writeTo(table);
+        Files.write(dir.resolve("volume"), volume);
+    }
+}
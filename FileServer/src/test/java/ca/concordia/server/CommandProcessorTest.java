@@ -0,0 +1,178 @@
+package ca.concordia.server;
+
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.device.BlockDevice;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CommandProcessorTest {
+
+    @TempDir
+    Path dir;
+
+    private FileSystemManager fs;
+    private CommandProcessor processor;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        BlockDevice device = BlockDevice.open(dir.resolve("volume").toString(), 256 * 1024, BlockDevice.Type.CHANNEL);
+        fs = new FileSystemManager(device, 128, 64);
+        processor = new CommandProcessor(fs);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        fs.close();
+    }
+
+    @Test
+    void tagIsEchoedOnEveryReply() {
+        assertEquals("#1 SUCCESS\n", run("#1 CREATE a"));
+        assertEquals("#2 SUCCESS\n", run("#2   write a hello world"));
+        assertEquals("#x-y hello world\n", run("#x-y READ a"));
+        assertEquals("#3 ERROR: Unknown command\n", run("#3 FETCH a"));
+        assertEquals("#4 ERROR: File already exists.\n", run("#4 CREATE a"));
+        assertEquals("#5 BYE\n", run("#5 DISCONNECT"));
+    }
+
+    @Test
+    void blankLinesGetNoReply() {
+        ReplyBuffer reply = new ReplyBuffer();
+        assertEquals(CommandProcessor.BLANK, process("   ", reply));
+        assertEquals(CommandProcessor.BLANK, process("#9", reply));
+        assertEquals(CommandProcessor.BLANK, process("#9    ", reply));
+        assertEquals(0, reply.size());
+        assertEquals(CommandProcessor.REPLY, process("LIST", reply));
+        assertEquals(CommandProcessor.DISCONNECT, process("disconnect", reply));
+        assertEquals("\nBYE\n", reply.toString());
+    }
+
+    @Test
+    void untaggedLinesStartingWithHashAreNotTags() {
+        byte[] line = bytes("READ #a");
+        assertEquals(0, CommandProcessor.tagEnd(line, 0, line.length));
+        line = bytes("#7 READ a");
+        assertEquals(2, CommandProcessor.tagEnd(line, 0, line.length));
+        assertEquals(3, CommandProcessor.tagEnd(line, 3, line.length));//no tag at from, so from itself
+    }
+
+    @Test
+    void batchCountsAreBounded() {
+        assertEquals(1, batchSize("BATCH 1"));
+        assertEquals(3, batchSize("  batch 3  "));
+        assertEquals(3, batchSize("BATCH   3"));
+        assertEquals(CommandProcessor.MAX_BATCH, batchSize("BATCH " + CommandProcessor.MAX_BATCH));
+        assertEquals(-2, batchSize("BATCH " + (CommandProcessor.MAX_BATCH + 1)));
+        assertEquals(-2, batchSize("BATCH 0"));
+        assertEquals(-2, batchSize("BATCH -1"));
+        assertEquals(-2, batchSize("BATCH x"));
+        assertEquals(-2, batchSize("BATCH"));
+        assertEquals(-2, batchSize("BATCH 2 3"));
+        assertEquals(-2, batchSize("BATCH 99999999999999999999"));
+        assertEquals(-1, batchSize("BATCHES 2"));
+        assertEquals(-1, batchSize("READ BATCH"));
+    }
+
+    @Test
+    void badBatchKeepsTheTag() {
+        byte[] line = bytes("#8 BATCH 0");
+        ReplyBuffer reply = new ReplyBuffer();
+        int tagEnd = CommandProcessor.tagEnd(line, 0, line.length);
+        assertEquals(-2, CommandProcessor.batchSize(line, tagEnd, line.length));
+        CommandProcessor.badBatch(line, 0, tagEnd, reply);
+        assertEquals("#8 ERROR: BATCH needs a count between 1 and " + CommandProcessor.MAX_BATCH + "\n", reply.toString());
+    }
+
+    @Test
+    void batchRepliesOncePerLineInOrder() {
+        ReplyBuffer reply = new ReplyBuffer();
+        processor.processBatch(lines("CREATE a", "WRITE a 12", "", "DISCONNECT", "READ a", "READ"), "#t", reply);
+        assertEquals("#t SUCCESS\n#t SUCCESS\n#t ERROR: empty command\n#t ERROR: DISCONNECT is not allowed in a batch\n"
+                + "#t 12\n#t ERROR: Missing filename\n", reply.toString());
+
+        reply.clear();
+        processor.processBatch(lines("APPEND a 3", "READ a"), null, reply);
+        assertEquals("SUCCESS\n123\n", reply.toString());
+    }
+
+    @Test
+    void rangedReadsStopAtTheEnd() {
+        run("CREATE a");
+        run("WRITE a 0123456789");
+        assertEquals("234\n", run("READ a 2 3"));
+        assertEquals("12\n", run("READ a  1  2"));
+        assertEquals("89\n", run("READ a 8 5"));
+        assertEquals("\n", run("READ a 10 5"));
+        assertEquals("\n", run("READ a 20 5"));
+        assertEquals("\n", run("READ a 0 0"));
+        assertTrue(run("READ a -1 2").startsWith("ERROR: "));
+        assertTrue(run("READ a 1 -2").startsWith("ERROR: "));
+        assertTrue(run("READ b 0 1").startsWith("ERROR: "));
+    }
+
+    @Test
+    void rangedReadsNeedTwoNumbers() {
+        run("CREATE a");
+        run("WRITE a 0123456789");
+        String usage = "ERROR: READ takes a filename, or a filename, offset and length\n";
+        assertEquals(usage, run("READ a 1"));
+        assertEquals(usage, run("READ a 1 2 3"));
+        assertEquals("ERROR: invalid number For input string: \"x\"\n", run("READ a x 2"));
+        assertEquals("ERROR: invalid number For input string: \"99999999999\"\n", run("READ a 0 99999999999"));
+    }
+
+    @Test
+    void writeAtAndAppend() {
+        run("CREATE a");
+        run("WRITE a 0123456789");
+        assertEquals("SUCCESS\n", run("WRITEAT a 0 h i"));//content may hold spaces
+        assertEquals("SUCCESS\n", run("WRITEAT a 10 XY"));//right at the end grows the file
+        assertTrue(run("WRITEAT a 13 Z").startsWith("ERROR: "));//past the end would leave a hole
+        assertTrue(run("WRITEAT a -1 Q").startsWith("ERROR: "));
+        assertEquals("ERROR: Missing filename, offset or content\n", run("WRITEAT a 5"));
+        assertEquals("ERROR: Missing filename, offset or content\n", run("WRITEAT a"));
+        assertEquals("SUCCESS\n", run("APPEND a  tail"));
+        assertEquals("ERROR: Missing filename or content\n", run("APPEND a"));
+        assertTrue(run("APPEND b x").startsWith("ERROR: "));
+        assertEquals("h i3456789XY tail\n", run("READ a"));
+    }
+
+    private String run(String line) {
+        ReplyBuffer reply = new ReplyBuffer();
+        process(line, reply);
+        return reply.toString();
+    }
+
+    private int process(String line, ReplyBuffer reply) {
+        byte[] b = bytes(line);
+        return processor.process(b, 0, b.length, reply);
+    }
+
+    private static int batchSize(String line) {
+        byte[] b = bytes(line);
+        return CommandProcessor.batchSize(b, 0, b.length);
+    }
+
+    private static List<byte[]> lines(String... lines) {
+        List<byte[]> list = new ArrayList<>();
+        for (String line : lines) {
+            list.add(bytes(line));
+        }
+        return list;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}